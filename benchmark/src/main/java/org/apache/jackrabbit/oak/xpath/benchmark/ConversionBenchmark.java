@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.xpath.XPathToSQL2Converter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks for the XPath to SQL2 conversion. The corpus is the list of
+ * queries of the JavaScript converter tests; the worst cases are generated.
+ * <p>
+ * Run with the GC profiler to get the allocation rate per operation:
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private static final String CORPUS = "corpus.txt";
+
+    /**
+     * The size of the large generated queries, that must be within the
+     * default limits.
+     */
+    private static final int LARGE_SIZE = 20_000;
+
+    /**
+     * The queries of the corpus.
+     */
+    @State(Scope.Thread)
+    public static class Corpus {
+
+        XPathToSQL2Converter converter;
+        String[] queries;
+
+        @Setup
+        public void setup() throws IOException, ParseException {
+            converter = new XPathToSQL2Converter();
+            queries = readCorpus();
+            for (String q : queries) {
+                // fail early if the corpus contains an invalid query
+                converter.convert(q);
+            }
+        }
+
+    }
+
+    /**
+     * A generated worst case query.
+     */
+    @State(Scope.Thread)
+    public static class WorstCase {
+
+        @Param({"orSameProperty", "orMixed", "deepPath", "union", "longLiteral"})
+        String shape;
+
+        @Param({"100", "1000"})
+        int size;
+
+        XPathToSQL2Converter converter;
+        String query;
+
+        @Setup
+        public void setup() throws ParseException {
+            converter = new XPathToSQL2Converter();
+            query = generate(shape, size);
+            converter.convert(query);
+            if (!"union".equals(shape)) {
+                // generated queries of this size (for example "or" lists
+                // with 20,000 terms) must be within the default limits
+                converter.convert(generate(shape, LARGE_SIZE));
+            }
+        }
+
+    }
+
+    @Benchmark
+    public void corpus(Corpus state, Blackhole bh) throws ParseException {
+        XPathToSQL2Converter converter = state.converter;
+        for (String q : state.queries) {
+            bh.consume(converter.convert(q));
+        }
+    }
+
+    @Benchmark
+    public String worstCase(WorstCase state) throws ParseException {
+        return state.converter.convert(state.query);
+    }
+
+    static String[] readCorpus() throws IOException {
+        ArrayList<String> list = new ArrayList<String>();
+        InputStream in = ConversionBenchmark.class.getResourceAsStream(CORPUS);
+        if (in == null) {
+            throw new IOException("Resource not found: " + CORPUS);
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                    list.add(line);
+                }
+            }
+        }
+        return list.toArray(new String[0]);
+    }
+
+    /**
+     * Generate a worst case query.
+     *
+     * @param shape the kind of query
+     * @param size the number of conditions, path elements, union branches,
+     *            or characters
+     * @return the query
+     */
+    static String generate(String shape, int size) {
+        StringBuilder buff = new StringBuilder();
+        switch (shape) {
+        case "orSameProperty":
+            // can be combined to one "in" condition
+            buff.append("//element(*, nt:base)[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    buff.append(" or ");
+                }
+                buff.append("@status = 'v").append(i).append('\'');
+            }
+            buff.append(']');
+            break;
+        case "orMixed":
+            // alternating properties: no two neighbours can be combined
+            buff.append("//element(*, nt:base)[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    buff.append(" or ");
+                }
+                buff.append('@').append(i % 2 == 0 ? "a" : "b")
+                        .append(" = 'v").append(i).append('\'');
+            }
+            buff.append(']');
+            break;
+        case "deepPath":
+            buff.append("/jcr:root");
+            for (int i = 0; i < size; i++) {
+                buff.append("/n").append(i);
+            }
+            buff.append("/element(*, nt:base)");
+            break;
+        case "union":
+            buff.append("/jcr:root/content/(");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    buff.append(" | ");
+                }
+                buff.append("element(*, t:n").append(i).append(")[@x = ").append(i).append(']');
+            }
+            buff.append(") order by @x");
+            break;
+        case "longLiteral":
+            buff.append("//*[jcr:contains(., '");
+            for (int i = 0; i < size; i++) {
+                buff.append(i % 10 == 9 ? ' ' : (char) ('a' + i % 26));
+            }
+            buff.append("')]");
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+        return buff.toString();
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ConversionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+}
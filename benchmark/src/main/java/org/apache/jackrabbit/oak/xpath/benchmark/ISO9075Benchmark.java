@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.xpath.ISO9075;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks for the ISO 9075 name codec, compared with the previous
+ * implementation. The names are typical node names of a content
+ * repository; most don't need to be encoded, some contain spaces or start
+ * with a digit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ISO9075Benchmark {
+
+    private static final String[] NAMES = {
+        "jcr:content", "cq:Page", "renditions", "original", "metadata",
+        "cq5dam.thumbnail.140.100.png", "dam:Asset", "par", "image", "text_1",
+        "2021", "My Page", "Über uns", "a b c", "_x0030_abc", "3d-model",
+    };
+
+    /**
+     * The decoded and encoded names.
+     */
+    @State(Scope.Thread)
+    public static class Names {
+
+        @Param({"legacy", "current"})
+        String codec;
+
+        String[] decoded;
+        String[] encoded;
+
+        @Setup
+        public void setup() {
+            decoded = NAMES;
+            encoded = new String[NAMES.length];
+            for (int i = 0; i < NAMES.length; i++) {
+                encoded[i] = ISO9075.encode(NAMES[i]);
+                if (!encoded[i].equals(LegacyISO9075.encode(NAMES[i]))) {
+                    throw new IllegalStateException("Different result for " + NAMES[i]);
+                }
+            }
+        }
+
+    }
+
+    @Benchmark
+    public void encode(Names state, Blackhole bh) {
+        boolean legacy = "legacy".equals(state.codec);
+        for (String n : state.decoded) {
+            bh.consume(legacy ? LegacyISO9075.encode(n) : ISO9075.encode(n));
+        }
+    }
+
+    @Benchmark
+    public void decode(Names state, Blackhole bh) {
+        boolean legacy = "legacy".equals(state.codec);
+        for (String n : state.encoded) {
+            bh.consume(legacy ? LegacyISO9075.decode(n) : ISO9075.decode(n));
+        }
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ISO9075Benchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+}
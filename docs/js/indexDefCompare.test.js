@@ -0,0 +1,109 @@
+/**
+ * Compares the index definitions of the JavaScript generator with the ones
+ * of the Java IndexDefinitionGenerator, for range queries on date and number
+ * properties. Also checks that queries the Java converter splits into a
+ * union keep their restrictions.
+ *
+ * Run with: node js/indexDefCompare.test.js
+ * (Java is required; the Java classes are built by bin/oak-xpath on first use.)
+ */
+
+const path = require('path');
+const { spawnSync } = require('child_process');
+const { convertXPathToSQL2 } = require('./xpath2.js');
+const { SQL2Lexer, SQL2Parser, convertASTToFilter, convertFilterToLuceneIndex } = require('./sql2-parser.js');
+const { TestRunner } = require('./indexDefGenerator.test.js');
+
+const LAUNCHER = path.join(__dirname, '..', '..', 'bin', 'oak-xpath');
+
+const QUERIES = [
+    "/jcr:root/content//element(*, cq:Page)[@jcr:created > xs:dateTime('2020-01-01T00:00:00.000Z')]",
+    "/jcr:root/content//element(*, cq:Page)[@jcr:created <= xs:dateTime('2020-01-01T00:00:00.000Z')]",
+    "/jcr:root/content//element(*, cq:PageContent)[@cq:lastModified >= xs:dateTime('2020-01-01T00:00:00.000Z') " +
+        "and @cq:lastModified < xs:dateTime('2021-01-01T00:00:00.000Z')]",
+    "/jcr:root/content/dam//element(*, dam:Asset)[@expires > xs:dateTime('2024-06-30T12:00:00.000+02:00')]",
+    "//element(*, nt:unstructured)[@price > 10]",
+    "//element(*, nt:unstructured)[@price >= 10 and @price <= 20]",
+    "//element(*, nt:unstructured)[@count > 1 and @count < 100]",
+    "SELECT * FROM [nt:unstructured] AS a WHERE a.[published] > CAST('2020-01-01T00:00:00.000Z' AS DATE)",
+    "SELECT * FROM [nt:unstructured] AS a WHERE a.[width] <= 1024 AND a.[ratio] > 0.5",
+];
+
+/**
+ * Queries that the Java converter splits into a union (the JavaScript
+ * generator doesn't), with the expected index rules and their properties.
+ */
+const UNION_QUERIES = [
+    {
+        query: "//element(*, nt:file)[jcr:contains(., 'x') or @a = 'b']",
+        rules: { "nt:file": ["a", "allStrings"] }
+    },
+    {
+        query: "//*[(@jcr:primaryType='nt:file' or @jcr:primaryType='nt:folder') and @x = 1]",
+        rules: { "nt:file": ["primaryType", "x"], "nt:folder": ["primaryType", "x"] }
+    },
+];
+
+/**
+ * Get the index definition of the JavaScript generator.
+ */
+function jsIndexDef(query) {
+    const sql2 = query.startsWith('SELECT') ? query : convertXPathToSQL2(query);
+    const lexer = new SQL2Lexer(sql2);
+    const parser = new SQL2Parser(lexer.tokens);
+    return convertFilterToLuceneIndex(convertASTToFilter(parser.parseQuery()));
+}
+
+/**
+ * Get the index definition of the Java generator.
+ */
+function javaIndexDef(query) {
+    const r = spawnSync('sh', [LAUNCHER, 'index', query], { encoding: 'utf8' });
+    if (r.error || r.status !== 0) {
+        throw new Error(`Java generator failed: ${r.error || r.stderr}`);
+    }
+    return JSON.parse(r.stdout);
+}
+
+/**
+ * Sort the keys of all objects, as the order of properties is not relevant.
+ */
+function sortKeys(x) {
+    if (Array.isArray(x)) {
+        return x.map(sortKeys);
+    } else if (x !== null && typeof x === 'object') {
+        const result = {};
+        for (const k of Object.keys(x).sort()) {
+            result[k] = sortKeys(x[k]);
+        }
+        return result;
+    }
+    return x;
+}
+
+const runner = new TestRunner();
+
+for (const query of QUERIES) {
+    runner.test(`Java and JavaScript index definitions match: ${query}`, function() {
+        this.assertEqual(sortKeys(javaIndexDef(query)), sortKeys(jsIndexDef(query)));
+    });
+}
+
+for (const { query, rules } of UNION_QUERIES) {
+    runner.test(`Java index definitions keep the restrictions of unions: ${query}`, function() {
+        const actual = {};
+        for (const index of Object.values(javaIndexDef(query))) {
+            for (const [nodeType, rule] of Object.entries(index.indexRules)) {
+                if (nodeType !== 'jcr:primaryType') {
+                    actual[nodeType] = Object.keys(rule.properties)
+                        .filter(k => k !== 'jcr:primaryType').sort();
+                }
+            }
+        }
+        this.assertEqual(actual, rules);
+    });
+}
+
+if (require.main === module) {
+    runner.run().catch(console.error);
+}
@@ -0,0 +1,63 @@
+/**
+ * Checks that binding values to a prepared Java query (PreparedQuery.bind)
+ * gives the same SQL2 query as converting the query with the values
+ * substituted, in particular for numbers that the converter normalizes
+ * (such as 007, which is converted to 7).
+ *
+ * Run with: node js/preparedQuery.test.js
+ * (Java is required; the Java classes are built by bin/oak-xpath on first use.)
+ */
+
+const path = require('path');
+const { spawnSync } = require('child_process');
+const { TestRunner } = require('./indexDefGenerator.test.js');
+
+const LAUNCHER = path.join(__dirname, '..', '..', 'bin', 'oak-xpath');
+
+const NUMBERS = [
+    '0', '7', '007', '000', '10', '1.50', '00.50', '.5', '1e3', '1E+03', '2e-2',
+    '2147483647', '02147483647', '2147483648', '0002147483648', '12345678901234567890',
+];
+
+/**
+ * Query templates: {n} is replaced with the n-th value. The first values
+ * are the ones that are prepared.
+ */
+const CASES = [
+    { query: '//*[@a = {0}]', values: [['1']].concat(NUMBERS.map(n => [n])) },
+    { query: '//element(*, nt:file)[@a > {0} and @b <= {1}]', values: [['1', '2'], ['007', '08.5'], ['1e2', '0']] },
+    { query: "//*[@a = {0} or @b = '{1}']", values: [['1', 'x'], ['007', "it's"], ['2.0', '007']] },
+    { query: '/jcr:root/content//*[@a = {0}] option(limit {1}, offset {2})', values: [['1', '10', '5'], ['007', '010', '00'], ['1', '1.5', '2']] },
+    { query: "//*[fn:name() = '{0}' and @a != {1}]", values: [['x', '1'], ['a b', '0010']] },
+];
+
+function substitute(query, values) {
+    return query.replace(/\{(\d+)\}/g, (m, i) => values[+i].replace(/'/g, "''"));
+}
+
+function launch(args, input) {
+    const r = spawnSync('sh', [LAUNCHER].concat(args), { input, encoding: 'utf8' });
+    if (r.error || r.status !== 0) {
+        throw new Error(`Java failed: ${r.error || r.stderr}`);
+    }
+    return r.stdout;
+}
+
+const runner = new TestRunner();
+
+for (const { query, values } of CASES) {
+    const prepared = substitute(query, values[0]);
+    // convert all queries with the values substituted in one process
+    const expected = launch(['convert'], values.map(v => substitute(query, v)).join('\n') + '\n')
+        .split('\n');
+    values.forEach((v, i) => {
+        runner.test(`Binding matches converting: ${prepared} with ${v.join(', ')}`, function() {
+            const actual = launch(['bind', prepared].concat(v)).trim();
+            this.assertEqual(actual, expected[i]);
+        });
+    });
+}
+
+if (require.main === module) {
+    runner.run().catch(console.error);
+}
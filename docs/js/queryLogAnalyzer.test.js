@@ -0,0 +1,167 @@
+/**
+ * Compares the parallel Java QueryLogAnalyzer (a file split into chunks,
+ * with the sketches of the chunks merged) with the single-threaded one
+ * (reading stdin), on a generated query log. The chunk sizes put chunk
+ * boundaries on and next to every line end; the log has CRLF line endings,
+ * multi-byte characters, and no final newline.
+ *
+ * If all query shapes fit in the sketch, both results must be equal. With a
+ * small sketch, where full and non-full sketches are merged, both results
+ * must keep the guarantees of the sketch: the weight is an upper bound, the
+ * weight minus the error a lower bound, and all shapes with a weight above
+ * total / capacity are listed.
+ *
+ * Run with: node js/queryLogAnalyzer.test.js
+ * (Java is required; the Java classes are built by bin/oak-xpath on first use.)
+ */
+
+const fs = require('fs');
+const os = require('os');
+const path = require('path');
+const { spawnSync } = require('child_process');
+const { TestRunner } = require('./indexDefGenerator.test.js');
+
+const LAUNCHER = path.join(__dirname, '..', '..', 'bin', 'oak-xpath');
+
+// more than the number of shapes of the generated log
+const LARGE_CAPACITY = 1000;
+const SMALL_CAPACITY = 8;
+
+/**
+ * Generate a query log with a skewed distribution of query shapes, so that
+ * some chunks have few shapes and others have many.
+ */
+function generateLog(lines, seed) {
+    let x = seed;
+    const random = n => {
+        x = (x * 1103515245 + 12345) % 2147483648;
+        return x % n;
+    };
+    let log = '';
+    for (let i = 0; i < lines; i++) {
+        // shape k with a probability of about 1 / (k + 1)
+        const k = Math.floor(Math.exp(random(1000) / 1000 * Math.log(40))) - 1;
+        let query;
+        switch (random(10)) {
+        case 0:
+            query = `SELECT * FROM [nt:t${k}] AS a WHERE a.[p${k}] = ${random(100)}`;
+            break;
+        case 1:
+            query = `//element(*, nt:t${k})[@p${k} = 'ä€𝄞${random(100)}']`;
+            break;
+        case 2:
+            // can not be parsed
+            query = `//*[@p${k} = 'x`;
+            break;
+        case 3:
+            query = '';
+            break;
+        default:
+            query = `/jcr:root/content//*[@p${k} = ${random(100)}]`;
+        }
+        if (query && random(2) === 0) {
+            query = `${random(50)}\t${query}`;
+        }
+        log += query + (random(4) === 0 ? '\r\n' : '\n');
+    }
+    // no final newline
+    return log + "//element(*, nt:last)[@x = 'y']";
+}
+
+/**
+ * Analyze a log with the Java analyzer, and parse the report.
+ *
+ * @param file the log file
+ * @param options the options; without -threads, stdin is read
+ */
+function analyze(file, options) {
+    const args = [LAUNCHER, 'analyze', '-top', '1000'].concat(options);
+    const input = options.includes('-threads') ? '' : fs.readFileSync(file);
+    if (input === '') {
+        args.push('-i', file);
+    }
+    const r = spawnSync('sh', args, { input, encoding: 'utf8', maxBuffer: 1 << 26 });
+    if (r.error || r.status !== 0) {
+        throw new Error(`Java analyzer failed: ${r.error || r.stderr}`);
+    }
+    const sections = r.stdout.split(/\n\n/);
+    const entries = section => {
+        const map = {};
+        // sorted by fingerprint, as the order of shapes with the same weight
+        // is not defined
+        const lines = section.trim().split('\n').slice(2).map(line => line.split('\t'));
+        lines.sort((a, b) => a[3] < b[3] ? -1 : a[3] > b[3] ? 1 : 0);
+        for (const [weight, error, other, fingerprint, sample] of lines) {
+            map[fingerprint] = { weight: +weight, error: +error, other: +other, sample };
+        }
+        return map;
+    };
+    return { summary: sections[0], byCount: entries(sections[1]), byTime: entries(sections[2]) };
+}
+
+/**
+ * Check that a sketch keeps its guarantees, compared with the exact result.
+ */
+function checkBounds(runner, sketch, exact, capacity) {
+    let total = 0;
+    for (const e of Object.values(exact)) {
+        total += e.weight;
+    }
+    for (const [fingerprint, e] of Object.entries(sketch)) {
+        const real = exact[fingerprint] ? exact[fingerprint].weight : 0;
+        runner.assertEqual(e.weight - e.error <= real && real <= e.weight, true,
+            `(weight ${e.weight}, error ${e.error}, real ${real} of ${fingerprint})`);
+    }
+    for (const [fingerprint, e] of Object.entries(exact)) {
+        if (e.weight > total / capacity) {
+            runner.assertEqual(fingerprint in sketch, true,
+                `(missing ${fingerprint} with weight ${e.weight} of ${total})`);
+        }
+    }
+}
+
+const dir = fs.mkdtempSync(path.join(os.tmpdir(), 'query-log-'));
+const smallLog = path.join(dir, 'small.txt');
+const largeLog = path.join(dir, 'large.txt');
+fs.writeFileSync(smallLog, generateLog(100, 1));
+fs.writeFileSync(largeLog, generateLog(5000, 2));
+
+// chunk size 1 to 3: a chunk boundary on and next to every line end
+const CONFIGS = [
+    { file: smallLog, chunkSizes: [1, 2, 3, 0] },
+    { file: largeLog, chunkSizes: [997, 4096, 0] },
+];
+
+const runner = new TestRunner();
+
+for (const { file, chunkSizes } of CONFIGS) {
+    const name = path.basename(file);
+    const exact = analyze(file, ['-capacity', '' + LARGE_CAPACITY]);
+    const serial = analyze(file, ['-capacity', '' + SMALL_CAPACITY]);
+
+    runner.test(`Single-threaded sketch keeps its guarantees: ${name}`, function() {
+        this.assertEqual(serial.summary, exact.summary);
+        checkBounds(this, serial.byCount, exact.byCount, SMALL_CAPACITY);
+        checkBounds(this, serial.byTime, exact.byTime, SMALL_CAPACITY);
+    });
+
+    for (const chunkSize of chunkSizes) {
+        const options = ['-threads', '4', '-chunkSize', '' + chunkSize];
+        runner.test(`Parallel and single-threaded results match: ${name}, chunk size ${chunkSize}`, function() {
+            const parallel = analyze(file, options.concat('-capacity', '' + LARGE_CAPACITY));
+            this.assertEqual(parallel, exact);
+        });
+        runner.test(`Merged sketches keep their guarantees: ${name}, chunk size ${chunkSize}`, function() {
+            const parallel = analyze(file, options.concat('-capacity', '' + SMALL_CAPACITY));
+            this.assertEqual(parallel.summary, serial.summary);
+            checkBounds(this, parallel.byCount, exact.byCount, SMALL_CAPACITY);
+            checkBounds(this, parallel.byTime, exact.byTime, SMALL_CAPACITY);
+        });
+    }
+}
+
+if (require.main === module) {
+    runner.run().catch(console.error).finally(() => {
+        fs.rmSync(dir, { recursive: true, force: true });
+    });
+}
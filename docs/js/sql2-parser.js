@@ -32,8 +32,15 @@ class SQL2Lexer {
         let value = '';
         this.advance(); // consume opening quote
         
-        while (this.peek() && this.peek() !== quote) {
-            if (this.peek() === '\\') {
+        while (this.peek()) {
+            if (this.peek() === quote) {
+                // a doubled quote is an escaped quote, as in SQL
+                if (this.input[this.position + 1] !== quote) {
+                    break;
+                }
+                this.advance();
+                value += this.advance();
+            } else if (this.peek() === '\\') {
                 this.advance(); // consume backslash
                 const escaped = this.advance();
                 if (escaped === 'n') value += '\n';
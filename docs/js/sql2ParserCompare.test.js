@@ -0,0 +1,235 @@
+/**
+ * Compares the Java SQL2Parser with the JavaScript SQL2 parser, for the
+ * queries of sql2-parser.test.js and a few more: the JavaScript syntax tree
+ * is written in the normalized form of the Java parser, and compared with
+ * the output of SQL2Parser.parseQuery(query).toString(). Invalid queries
+ * must be rejected by both parsers, except for the known differences below.
+ *
+ * Run with: node js/sql2ParserCompare.test.js
+ * (Java is required; the Java classes are built by bin/oak-xpath on first use.)
+ */
+
+const path = require('path');
+const { spawnSync } = require('child_process');
+const { SQL2Lexer, SQL2Parser } = require('./sql2-parser.js');
+const { TestRunner } = require('./indexDefGenerator.test.js');
+
+const LAUNCHER = path.join(__dirname, '..', '..', 'bin', 'oak-xpath');
+
+const QUERIES = [
+    // the queries of sql2-parser.test.js
+    "SELECT * FROM [nt:base]",
+    "SELECT [jcr:title], [jcr:created] FROM [nt:base]",
+    "SELECT 'hello world' FROM [nt:base]",
+    "SELECT 123 FROM [nt:base]",
+    "SELECT * FROM [nt:base] WHERE [jcr:title] = 'test'",
+    "SELECT * FROM [nt:base] WHERE [jcr:path] LIKE '/content/%'",
+    "SELECT * FROM [nt:base] WHERE [jcr:title] = 'test' AND [jcr:created] > '2023-01-01'",
+    "SELECT * FROM [nt:base] ORDER BY [jcr:created] DESC",
+    "SELECT * FROM [nt:base] WHERE [jcr:title] IS NULL",
+    "SELECT * FROM [nt:base] WHERE [jcr:title] IS NOT NULL",
+    "SELECT UPPER([jcr:title]) FROM [nt:base]",
+    "SELECT * FROM [nt:base] WHERE [jcr:primaryType] IN ('nt:file', 'nt:folder')",
+    "SELECT CAST([jcr:created] AS DATE) FROM [nt:base]",
+    "SELECT * FROM [nt:base] WHERE CONTAINS([jcr:content], 'test')",
+    "SELECT * FROM [nt:base] WHERE contains([jcr:content], 'test')",
+    "SELECT LENGTH([jcr:title]), LOWER([jcr:description]), NAME() FROM [nt:base]",
+    "SELECT * FROM [nt:base] WHERE [name] = 'test' OPTION (index tag [myTag])",
+    "select * from [nt:base] option(traversal FAIL, offset 100, limit 50)",
+    "select * from [nt:base] option(index tag [abc], limit 100)",
+    "SELECT * FROM [nt:base] WHERE [name] = 'test' OPTION (index tag myTag)",
+    "select * from [nt:base] option(index tag myTag)",
+    "SELECT [jcr:title] FROM [nt:base] WHERE [jcr:path] LIKE '/content/%'",
+    "SELECT * FROM [nt:base] WHERE [jcr:created] > '2023-01-01'",
+    "SELECT * FROM [nt:base] ORDER BY [jcr:created] DESC, [jcr:title] ASC",
+    "SELECT [jcr:title], [jcr:created] FROM [nt:base] WHERE [jcr:title] IS NOT NULL ORDER BY [jcr:created] DESC",
+    "SELECT [jcr:title], [jcr:created] FROM [nt:base] WHERE [jcr:path] LIKE '/content/%' " +
+        "AND [jcr:created] > '2023-01-01' AND [jcr:title] IS NOT NULL ORDER BY [jcr:created] DESC",
+    // selectors, operator precedence, and path conditions
+    "SELECT * FROM [nt:base] AS a WHERE a.[x] = 1 AND (a.[y] = 2 OR a.[z] IS NULL)",
+    "SELECT * FROM [nt:base] AS a WHERE ISDESCENDANTNODE(a, '/content') AND NOT a.[x] = 'it''s'",
+    "SELECT * FROM [nt:base] WHERE [a] = 1.5 OR [b] <> 2 AND [c] <= 3",
+    "SELECT * FROM [nt:base] WHERE ([a] = 1 OR [b] = 2) AND [c] >= 3 ORDER BY [a] ASC",
+    "SELECT * FROM [nt:base] WHERE NOT ([a] = 1 OR [b] = 2)",
+    "SELECT * FROM [cq:Page] AS p WHERE CONTAINS(p.*, 'x') OR ISCHILDNODE(p, [/a]) OR ISSAMENODE(p, '/b')",
+    "select * from [nt:base] where lower([a]) like 'x%' and [b] = cast('1' as long) and [c] = 10",
+];
+
+/**
+ * Queries that both parsers reject.
+ */
+const INVALID_QUERIES = [
+    "SELECT * FROM",
+    "SELECT * FROM [nt:base] WHERE",
+    "SELECT * FROM [nt:base] WHERE [a] =",
+    "SELECT * FROM [nt:base] AS",
+    "SELECT * FROM [nt:base] AS a WHERE a.",
+    "select * from [nt:base] option(offset x)",
+    "select * from [nt:base] option(traversal)",
+    "select * from [nt:base] where [a] in ('x'",
+    "select * from [nt:base] where cast([a] as) = 1",
+];
+
+/**
+ * Queries that only the JavaScript parser rejects, with the Java result.
+ * Oak supports "option(index name ...)", but the JavaScript parser rejects
+ * it on purpose, as it is meant for development only.
+ */
+const JS_ONLY_INVALID_QUERIES = [
+    {
+        query: "select * from [nt:base] option(index name myIndex)",
+        java: "select [jcr:path], [jcr:score], * from [nt:base] option(index name [myIndex])"
+    },
+];
+
+const PATH_FUNCTIONS = ['isdescendantnode', 'ischildnode', 'issamenode'];
+
+function quoteString(value) {
+    return "'" + value.replace(/'/g, "''") + "'";
+}
+
+function quoteName(name) {
+    return /^[A-Za-z_][A-Za-z0-9_]*$/.test(name) ? name : `[${name}]`;
+}
+
+/**
+ * Write an expression of the JavaScript syntax tree in the normalized form
+ * of the Java parser.
+ */
+function expressionToSQL2(e) {
+    switch (e.type) {
+    case 'BinaryOperation': {
+        const op = e.operator.toLowerCase();
+        if (op === 'and') {
+            const side = x => x.type === 'BinaryOperation' && x.operator.toLowerCase() === 'or' ?
+                `(${expressionToSQL2(x)})` : expressionToSQL2(x);
+            return `${side(e.left)} and ${side(e.right)}`;
+        }
+        return `${expressionToSQL2(e.left)} ${op} ${expressionToSQL2(e.right)}`;
+    }
+    case 'UnaryOperation':
+        return `not(${expressionToSQL2(e.expression)})`;
+    case 'InComparison':
+        return `${expressionToSQL2(e.expression)} in(${e.values.map(expressionToSQL2).join(', ')})`;
+    case 'IsNull':
+        return `${expressionToSQL2(e.expression)} is ${e.not ? 'not ' : ''}null`;
+    case 'Property':
+        // there is only one selector, so the selector name is not written
+        return e.name === '*' ? '*' : `[${e.name}]`;
+    case 'Cast':
+        return `cast(${expressionToSQL2(e.expression)} as ${e.dataType.toLowerCase()})`;
+    case 'Function': {
+        const args = e.arguments.map(a =>
+            PATH_FUNCTIONS.includes(e.name) && a.type === 'Property' ?
+                quoteString(a.name) : expressionToSQL2(a));
+        return `${e.name}(${args.join(', ')})`;
+    }
+    case 'Identifier':
+        return quoteName(e.name);
+    case 'Literal':
+        return e.dataType === 'string' ? quoteString(e.value) : String(e.value);
+    case 'Star':
+        return '*';
+    }
+    throw new Error(`Unsupported expression: ${e.type}`);
+}
+
+/**
+ * Write the JavaScript syntax tree in the normalized form of the Java parser.
+ */
+function toSQL2(ast) {
+    const columns = ['[jcr:path]', '[jcr:score]'].concat(ast.columns.map(c =>
+        c.type === 'AllColumns' ? '*' : expressionToSQL2(c.expression)));
+    let sql = `select ${columns.join(', ')} from [${ast.from.value}]`;
+    if (ast.from.alias && ast.from.alias !== ast.from.value) {
+        sql += ` as ${quoteName(ast.from.alias)}`;
+    }
+    if (ast.where) {
+        sql += ` where ${expressionToSQL2(ast.where)}`;
+    }
+    if (ast.orderBy.length > 0) {
+        sql += ' order by ' + ast.orderBy.map(o => expressionToSQL2(o.expression) +
+            (o.direction.toUpperCase() === 'DESC' ? ' desc' : '')).join(', ');
+    }
+    if (ast.options) {
+        const o = ast.options;
+        const options = [];
+        if (o.traversal !== undefined) {
+            options.push(`traversal ${o.traversal}`);
+        }
+        if (o.indexTag !== undefined) {
+            options.push(`index tag [${o.indexTag}]`);
+        }
+        if (o.offset !== undefined) {
+            options.push(`offset ${o.offset}`);
+        }
+        if (o.limit !== undefined) {
+            options.push(`limit ${o.limit}`);
+        }
+        sql += ` option(${options.join(', ')})`;
+    }
+    return sql;
+}
+
+/**
+ * Parse a query with the JavaScript parser.
+ */
+function jsParse(query) {
+    const lexer = new SQL2Lexer(query);
+    return new SQL2Parser(lexer.tokens).parseQuery();
+}
+
+/**
+ * Parse the queries with the Java parser (one process for all queries).
+ * Returns the normalized query, or "Error: ..." per query.
+ */
+function javaParse(queries) {
+    const r = spawnSync('sh', [LAUNCHER, 'parse'],
+        { input: queries.join('\n') + '\n', encoding: 'utf8' });
+    if (r.error || r.status !== 0) {
+        throw new Error(`Java parser failed: ${r.error || r.stderr}`);
+    }
+    return r.stdout.split('\n').slice(0, queries.length);
+}
+
+const all = QUERIES.concat(INVALID_QUERIES, JS_ONLY_INVALID_QUERIES.map(x => x.query));
+const java = new Map();
+javaParse(all).forEach((result, i) => java.set(all[i], result));
+
+const runner = new TestRunner();
+
+for (const query of QUERIES) {
+    runner.test(`Java and JavaScript parsers match: ${query}`, function() {
+        this.assertEqual(toSQL2(jsParse(query)), java.get(query));
+    });
+}
+
+for (const query of INVALID_QUERIES) {
+    runner.test(`Java and JavaScript parsers reject: ${query}`, function() {
+        this.assertEqual(java.get(query).startsWith('Error: '), true, `(Java accepted: ${java.get(query)})`);
+        let ast = null;
+        try {
+            ast = jsParse(query);
+        } catch (e) {
+            // expected
+        }
+        this.assertEqual(ast, null, 'JavaScript accepted the query');
+    });
+}
+
+for (const { query, java: expected } of JS_ONLY_INVALID_QUERIES) {
+    runner.test(`Only the JavaScript parser rejects: ${query}`, function() {
+        this.assertEqual(java.get(query), expected);
+        let message = null;
+        try {
+            jsParse(query);
+        } catch (e) {
+            message = e.message;
+        }
+        this.assertEqual(message !== null, true, 'JavaScript accepted the query');
+    });
+}
+
+if (require.main === module) {
+    runner.run().catch(console.error);
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of XPath to SQL2 conversions. It is safe to use
+ * concurrently by many threads.
+ * <p>
+ * Lookups don't lock: a hit only marks the entry as recently used. Eviction
+ * uses the "second chance" (clock) algorithm: entries are kept in insertion
+ * order, and entries that were used since the last time they were looked at
+ * are moved to the back of the queue instead of being removed. This is
+ * close to LRU, but doesn't need to re-order entries on each hit.
+ * <p>
+ * The size is limited by the number of entries, and by the weight, which
+ * is the number of characters of the XPath query plus the SQL2 query.
+ * Queries that fail to parse are not cached.
+ * <p>
+ * Optionally, the cache can be keyed on the query shape: string and number
+ * literals are then extracted by the tokenizer, and the cache contains
+ * prepared queries (see {@link PreparedQuery}), so that queries which only
+ * differ in literal values share one entry.
+ */
+public class ConversionCache {
+
+    /**
+     * The default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    /**
+     * The default maximum weight (number of characters).
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 16L * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final boolean byShape;
+
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong weight = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public ConversionCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+
+    public ConversionCache(int maxEntries, long maxWeight) {
+        this(maxEntries, maxWeight, false);
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries the maximum number of entries
+     * @param maxWeight the maximum weight (number of characters of the keys
+     *            and values)
+     * @param byShape whether to cache prepared queries keyed on the query
+     *            shape, instead of the query string
+     */
+    public ConversionCache(int maxEntries, long maxWeight, boolean byShape) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid cache size: entries " + maxEntries + ", weight " + maxWeight);
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.byShape = byShape;
+    }
+
+    /**
+     * Convert the query to SQL2, or get the cached conversion.
+     *
+     * @param query the XPath query
+     * @return the SQL2 query
+     * @throws ParseException if parsing fails
+     */
+    public String convert(String query) throws ParseException {
+        String key = normalize(query);
+        if (byShape) {
+            return convertByShape(key);
+        }
+        Entry e = map.get(key);
+        if (e != null) {
+            e.referenced = true;
+            hitCount.increment();
+            return e.value;
+        }
+        missCount.increment();
+        String sql2 = XPathToSQL2Converter.toSQL2(key);
+        put(new Entry(key, sql2, null));
+        return sql2;
+    }
+
+    private String convertByShape(String query) throws ParseException {
+        PreparedQuery.Shape shape;
+        try {
+            shape = PreparedQuery.getShape(query);
+        } catch (ParseException e) {
+            // tokenizing failed: get the detailed error message
+            missCount.increment();
+            return XPathToSQL2Converter.toSQL2(query);
+        }
+        Entry e = map.get(shape.key);
+        PreparedQuery prepared;
+        if (e != null) {
+            e.referenced = true;
+            hitCount.increment();
+            prepared = e.prepared;
+        } else {
+            missCount.increment();
+            prepared = PreparedQuery.prepare(query);
+            put(new Entry(shape.key, null, prepared));
+        }
+        String sql2 = prepared.bindOrNull(shape.values);
+        if (sql2 == null) {
+            sql2 = XPathToSQL2Converter.toSQL2(query);
+        }
+        return sql2;
+    }
+
+    /**
+     * Get the cache key of a query. Leading and trailing whitespace is
+     * ignored, same as in the converter.
+     *
+     * @param query the query
+     * @return the key
+     */
+    static String normalize(String query) {
+        return query.trim();
+    }
+
+    private void put(Entry e) {
+        if (e.weight > maxWeight) {
+            return;
+        }
+        if (map.putIfAbsent(e.key, e) != null) {
+            // converted concurrently by another thread
+            return;
+        }
+        queue.add(e);
+        if (weight.addAndGet(e.weight) > maxWeight || map.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            while (weight.get() > maxWeight || map.size() > maxEntries) {
+                Entry e = queue.poll();
+                if (e == null) {
+                    break;
+                }
+                if (e.referenced) {
+                    // second chance
+                    e.referenced = false;
+                    queue.add(e);
+                } else if (map.remove(e.key, e)) {
+                    weight.addAndGet(-e.weight);
+                    evictionCount.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries. The statistics are not reset.
+     */
+    public void clear() {
+        synchronized (evictionLock) {
+            Entry e;
+            while ((e = queue.poll()) != null) {
+                if (map.remove(e.key, e)) {
+                    weight.addAndGet(-e.weight);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "entries: " + size() + "/" + maxEntries +
+                ", weight: " + getWeight() + "/" + maxWeight +
+                ", hits: " + getHitCount() +
+                ", misses: " + getMissCount() +
+                ", evictions: " + getEvictionCount();
+    }
+
+    /**
+     * A cache entry.
+     */
+    private static class Entry {
+
+        final String key;
+
+        /**
+         * The SQL2 query, or null if keyed on the shape.
+         */
+        final String value;
+
+        /**
+         * The prepared query, or null if keyed on the query string.
+         */
+        final PreparedQuery prepared;
+
+        final long weight;
+
+        /**
+         * Whether the entry was used since it was last looked at by the
+         * eviction.
+         */
+        volatile boolean referenced;
+
+        Entry(String key, String value, PreparedQuery prepared) {
+            this.key = key;
+            this.value = value;
+            this.prepared = prepared;
+            this.weight = key.length() +
+                    (value != null ? value.length() : prepared.getWeight());
+        }
+
+    }
+
+}
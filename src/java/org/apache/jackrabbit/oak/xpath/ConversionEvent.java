@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event for one XPath to SQL2 conversion. The
+ * duration of the event is the total time; the fields contain the time of
+ * each phase. Tokenizing and parsing are interleaved: the tokenize time is
+ * the time to scan the query before parsing, and the parse time includes
+ * reading the remaining tokens.
+ */
+@Name("org.apache.jackrabbit.oak.xpath.Conversion")
+@Label("XPath Conversion")
+@Category({ "Oak", "Query" })
+@Description("Conversion of an XPath query to SQL2")
+@StackTrace(false)
+class ConversionEvent extends Event {
+
+    @Label("XPath Query")
+    String query;
+
+    @Label("Tokenize Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long tokenizeTime;
+
+    @Label("Parse Time")
+    @Description("Time to parse, excluding tokenize and union expansion")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseTime;
+
+    @Label("Union Expansion Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long unionTime;
+
+    @Label("Optimize Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long optimizeTime;
+
+    @Label("Render Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long renderTime;
+
+    @Label("Token Count")
+    int tokenCount;
+
+    @Label("Selector Count")
+    int selectorCount;
+
+    @Label("Union Branch Count")
+    int unionBranchCount;
+
+    @Label("Error")
+    String error;
+
+}
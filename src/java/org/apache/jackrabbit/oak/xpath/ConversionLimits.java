@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Limits on the complexity of XPath queries, so that a single very large or
+ * deeply nested query can not stall the converter. The limits are checked
+ * by one linear scan over the query before it is parsed. The counts are
+ * upper bounds: for example, operators such as "&lt;=" count as two tokens.
+ * The SQL2 parser only uses the nesting depth, which it checks while
+ * parsing.
+ * <p>
+ * The default limits can be set with the system properties
+ * "oak.xpathMaxLength", "oak.xpathMaxTokens", "oak.xpathMaxDepth",
+ * "oak.xpathMaxOrTerms", and "oak.xpathMaxUnionBranches".
+ * <p>
+ * Instances are immutable.
+ */
+public class ConversionLimits {
+
+    /**
+     * The default limits. They are far above what generated queries need
+     * (for example an "or" list of 100,000 terms, or a string literal of
+     * many megabytes), and only reject queries that would stall the
+     * converter or overflow the stack.
+     */
+    public static final ConversionLimits DEFAULT = new ConversionLimits(
+            Integer.getInteger("oak.xpathMaxLength", 64 * 1024 * 1024),
+            Integer.getInteger("oak.xpathMaxTokens", 10_000_000),
+            Integer.getInteger("oak.xpathMaxDepth", 200),
+            Integer.getInteger("oak.xpathMaxOrTerms", 1_000_000),
+            Integer.getInteger("oak.xpathMaxUnionBranches", 10_000));
+
+    /**
+     * No limits.
+     */
+    public static final ConversionLimits UNLIMITED = new ConversionLimits(
+            Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final int maxLength;
+    private final int maxTokens;
+    private final int maxDepth;
+    private final int maxOrTerms;
+    private final int maxUnionBranches;
+
+    /**
+     * Create a new set of limits.
+     *
+     * @param maxLength the maximum number of characters
+     * @param maxTokens the maximum number of tokens
+     * @param maxDepth the maximum nesting depth of round and square brackets
+     * @param maxOrTerms the maximum number of terms of "or" conditions
+     * @param maxUnionBranches the maximum number of union branches, that is
+     *            the number of statements the alternatives ("|") expand to
+     */
+    public ConversionLimits(int maxLength, int maxTokens, int maxDepth,
+            int maxOrTerms, int maxUnionBranches) {
+        if (maxLength < 1 || maxTokens < 1 || maxDepth < 1 ||
+                maxOrTerms < 1 || maxUnionBranches < 1) {
+            throw new IllegalArgumentException("Invalid limits: " +
+                    toString(maxLength, maxTokens, maxDepth, maxOrTerms, maxUnionBranches));
+        }
+        this.maxLength = maxLength;
+        this.maxTokens = maxTokens;
+        this.maxDepth = maxDepth;
+        this.maxOrTerms = maxOrTerms;
+        this.maxUnionBranches = maxUnionBranches;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxOrTerms() {
+        return maxOrTerms;
+    }
+
+    public int getMaxUnionBranches() {
+        return maxUnionBranches;
+    }
+
+    /**
+     * Check that the query is within the limits.
+     *
+     * @param query the query
+     * @throws ParseException if a limit is exceeded
+     */
+    public void check(String query) throws ParseException {
+        int len = query.length();
+        if (len > maxLength) {
+            throw tooComplex("length " + len, maxLength, maxLength);
+        }
+        int tokens = 0, orTerms = 1;
+        int depth = 0;
+        // for each open round bracket: the number of branches of the
+        // completed alternatives, and of the current alternative
+        long[] sum = new long[16];
+        long[] product = new long[16];
+        int level = 0;
+        product[0] = 1;
+        for (int i = 0; i < len; i++) {
+            char c = query.charAt(i);
+            if (c <= ' ') {
+                continue;
+            }
+            if (++tokens > maxTokens) {
+                throw tooComplex("token count", maxTokens, i);
+            }
+            switch (c) {
+            case '\'':
+            case '\"':
+                int end = i;
+                while (true) {
+                    end = query.indexOf(c, end + 1);
+                    if (end < 0) {
+                        // the parser reports unterminated strings
+                        return;
+                    } else if (end + 1 < len && query.charAt(end + 1) == c) {
+                        // an escaped quote
+                        end++;
+                    } else {
+                        break;
+                    }
+                }
+                i = end;
+                break;
+            case '[':
+                if (++depth > maxDepth) {
+                    throw tooComplex("nesting depth", maxDepth, i);
+                }
+                break;
+            case ']':
+                depth = Math.max(0, depth - 1);
+                break;
+            case '(':
+                if (++depth > maxDepth) {
+                    throw tooComplex("nesting depth", maxDepth, i);
+                }
+                if (++level == sum.length) {
+                    sum = Arrays.copyOf(sum, level * 2);
+                    product = Arrays.copyOf(product, level * 2);
+                }
+                sum[level] = 0;
+                product[level] = 1;
+                break;
+            case ')':
+                depth = Math.max(0, depth - 1);
+                if (level > 0) {
+                    long branches = sum[level] + product[level];
+                    level--;
+                    product[level] = Math.min(product[level] * branches, Integer.MAX_VALUE);
+                    if (product[level] + sum[level] > maxUnionBranches) {
+                        throw tooComplex("union branch count", maxUnionBranches, i);
+                    }
+                }
+                break;
+            case '|':
+                sum[level] += product[level];
+                product[level] = 1;
+                if (sum[level] + product[level] > maxUnionBranches) {
+                    throw tooComplex("union branch count", maxUnionBranches, i);
+                }
+                break;
+            default:
+                if (isNameChar(c)) {
+                    int start = i;
+                    while (i + 1 < len && isNameChar(query.charAt(i + 1))) {
+                        i++;
+                    }
+                    if (i == start + 1 && c == 'o' && query.charAt(i) == 'r') {
+                        if (++orTerms > maxOrTerms) {
+                            throw tooComplex("or term count", maxOrTerms, start);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the nesting depth of a parser.
+     *
+     * @param depth the current depth
+     * @param index the position in the query
+     * @throws ParseException if the depth exceeds the limit
+     */
+    void checkDepth(int depth, int index) throws ParseException {
+        if (depth > maxDepth) {
+            throw tooComplex("nesting depth", maxDepth, index);
+        }
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == ':' || c == '.';
+    }
+
+    private static ParseException tooComplex(String what, int limit, int index) {
+        return new ParseException("Query too complex: " + what +
+                " exceeds the limit of " + limit, index);
+    }
+
+    private static String toString(int maxLength, int maxTokens, int maxDepth,
+            int maxOrTerms, int maxUnionBranches) {
+        return "length " + maxLength +
+                ", tokens " + maxTokens +
+                ", depth " + maxDepth +
+                ", or terms " + maxOrTerms +
+                ", union branches " + maxUnionBranches;
+    }
+
+    @Override
+    public String toString() {
+        return toString(maxLength, maxTokens, maxDepth, maxOrTerms, maxUnionBranches);
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+/**
+ * The result of converting one query of a batch: either the SQL2 query, or
+ * the error.
+ */
+public class ConversionResult {
+
+    private final String xpath;
+    private final String sql2;
+    private final Exception error;
+
+    ConversionResult(String xpath, String sql2, Exception error) {
+        this.xpath = xpath;
+        this.sql2 = sql2;
+        this.error = error;
+    }
+
+    /**
+     * Get the XPath query.
+     *
+     * @return the XPath query
+     */
+    public String getXPath() {
+        return xpath;
+    }
+
+    /**
+     * Get the SQL2 query.
+     *
+     * @return the SQL2 query, or null if converting failed
+     */
+    public String getSQL2() {
+        return sql2;
+    }
+
+    /**
+     * Get the error. This is usually a {@link java.text.ParseException}.
+     *
+     * @return the error, or null if converting succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Whether converting succeeded.
+     *
+     * @return true if yes
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return error == null ? sql2 : "Error: " + error.getMessage();
+    }
+
+}
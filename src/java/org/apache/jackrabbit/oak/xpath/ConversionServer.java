@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP service for the conversion tools, so that scripts don't need
+ * to start a new JVM per call. Requests are plain text (UTF-8): the query
+ * is the request body of a POST request, or the "q" parameter of a GET
+ * request. Batch endpoints accept one query per line, and return one line
+ * per query, in the same order.
+ * <ul>
+ * <li>/convert: XPath to SQL2</li>
+ * <li>/convert/batch: XPath to SQL2, errors are written as "Error: ...",
+ * and empty lines as empty lines</li>
+ * <li>/parse: SQL2 normalized by the SQL2 parser</li>
+ * <li>/fingerprint, /fingerprint/batch: the query shape fingerprint</li>
+ * <li>/filter: the filters of an XPath or SQL2 query</li>
+ * <li>/index: the Lucene index definitions for a list of queries</li>
+ * </ul>
+ * Other paths are rejected with status 404. Errors of single-query
+ * endpoints are returned with status 400, and so are the errors of
+ * /index (one line per query that can not be parsed). Each request is processed in a
+ * virtual thread, if the JVM supports it (Java 21 or newer), and otherwise
+ * in a thread of a cached pool. Connections are kept alive.
+ * <p>
+ * The JDK server writes the headers and the body of a response separately,
+ * so that without the system property "sun.net.httpserver.nodelay=true",
+ * small responses are delayed by about 40 ms (Nagle's algorithm and delayed
+ * ACK). The main method sets it; applications that embed the server should
+ * set it on the command line, as it applies to all servers of the JVM.
+ */
+public class ConversionServer {
+
+    /**
+     * The maximum size of a request body.
+     */
+    static final int MAX_REQUEST_SIZE = 64 * 1024 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public ConversionServer(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        executor = newExecutor();
+        server.setExecutor(executor);
+        server.createContext("/convert", exchange -> handle(exchange,
+                q -> XPathToSQL2Converter.toSQL2(q)));
+        server.createContext("/convert/batch", exchange -> handleBatch(exchange,
+                list -> {
+                    StringBuilder buff = new StringBuilder();
+                    for (ConversionResult r : XPathToSQL2Converter.convertAll(list)) {
+                        // empty lines are written as empty lines, as in QueryLogConverter
+                        if (!r.getXPath().trim().isEmpty()) {
+                            String s = r.toString();
+                            buff.append(s.replace('\r', ' ').replace('\n', ' '));
+                        }
+                        buff.append('\n');
+                    }
+                    return buff.toString();
+                }));
+        server.createContext("/parse", exchange -> handle(exchange,
+                q -> SQL2Parser.parseQuery(q).toString()));
+        server.createContext("/fingerprint", exchange -> handle(exchange,
+                q -> QueryFingerprint.toString(fingerprint(q))));
+        server.createContext("/fingerprint/batch", exchange -> handleBatch(exchange,
+                list -> {
+                    StringBuilder buff = new StringBuilder();
+                    for (String q : list) {
+                        try {
+                            buff.append(QueryFingerprint.toString(fingerprint(q)));
+                        } catch (ParseException e) {
+                            buff.append(QueryLogConverter.ERROR_PREFIX).append(
+                                    String.valueOf(e.getMessage()).replace('\n', ' '));
+                        }
+                        buff.append('\n');
+                    }
+                    return buff.toString();
+                }));
+        server.createContext("/filter", exchange -> handle(exchange, q -> {
+            Statement s = SQL2Parser.isSQL2(q) ? SQL2Parser.parseQuery(q) :
+                    XPathToSQL2Converter.toConvertedQuery(q).getStatement();
+            StringBuilder buff = new StringBuilder();
+            for (QueryFilter f : QueryFilter.of(s)) {
+                buff.append(f).append('\n');
+            }
+            return buff.toString();
+        }));
+        server.createContext("/index", exchange -> handleBatch(exchange,
+                IndexDefinitionGenerator::generate));
+    }
+
+    public static void main(String... args) throws IOException {
+        String bind = "127.0.0.1";
+        int port = 8765;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("-port".equals(a) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-bind".equals(a) && i + 1 < args.length) {
+                bind = args[++i];
+            } else {
+                System.err.println("Usage: java " + ConversionServer.class.getName() +
+                        " [-port <port>] [-bind <address>]");
+                System.err.println("Listens on 127.0.0.1:8765 by default.");
+                System.exit(1);
+                return;
+            }
+        }
+        // must be set before the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        ConversionServer server = new ConversionServer(
+                new InetSocketAddress(InetAddress.getByName(bind), port));
+        server.start();
+        System.err.println("Listening on " + server.getAddress());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop the server. Requests that are in progress are given up to the
+     * given number of seconds to complete.
+     *
+     * @param delaySeconds the maximum time to wait
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Create an executor that uses a virtual thread per task, if supported.
+     * Reflection is used, so that the code also runs on Java 11.
+     *
+     * @return the executor
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "ConversionServer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static long fingerprint(String query) throws ParseException {
+        return SQL2Parser.isSQL2(query) ?
+                QueryFingerprint.ofSQL2(query) : QueryFingerprint.ofXPath(query);
+    }
+
+    private static void handle(HttpExchange exchange, Function function) throws IOException {
+        try {
+            String query = readQuery(exchange);
+            if (query == null) {
+                return;
+            }
+            String result;
+            try {
+                result = function.apply(query.trim());
+            } catch (ParseException e) {
+                send(exchange, 400, e.getMessage());
+                return;
+            }
+            send(exchange, 200, result);
+        } catch (RuntimeException | StackOverflowError e) {
+            send(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void handleBatch(HttpExchange exchange, BatchFunction function)
+            throws IOException {
+        try {
+            String body = readQuery(exchange);
+            if (body == null) {
+                return;
+            }
+            List<String> lines = body.isEmpty() ? new ArrayList<String>() :
+                    Arrays.asList(body.split("\r?\n"));
+            String result;
+            try {
+                result = function.apply(lines);
+            } catch (ParseException e) {
+                send(exchange, 400, e.getMessage());
+                return;
+            }
+            send(exchange, 200, result);
+        } catch (RuntimeException | StackOverflowError e) {
+            send(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read the query: the body of a POST request, or the "q" parameter of a
+     * GET request. If the request is invalid, the error response is sent.
+     *
+     * @param exchange the exchange
+     * @return the query, or null if the request is invalid
+     */
+    private static String readQuery(HttpExchange exchange) throws IOException {
+        // contexts match by prefix, for example "/convert/x" for "/convert"
+        if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+            send(exchange, 404, "Not found");
+            return null;
+        }
+        String method = exchange.getRequestMethod();
+        if ("POST".equals(method)) {
+            String body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                send(exchange, 413, "Request too large");
+            }
+            return body;
+        } else if ("GET".equals(method)) {
+            String q = exchange.getRequestURI().getRawQuery();
+            if (q != null) {
+                for (String p : q.split("&")) {
+                    if (p.startsWith("q=")) {
+                        return URLDecoder.decode(p.substring(2), "UTF-8");
+                    }
+                }
+            }
+            send(exchange, 400, "Missing parameter q");
+            return null;
+        }
+        exchange.getResponseHeaders().set("Allow", "GET, POST");
+        send(exchange, 405, "Method not allowed");
+        return null;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[8192];
+        int n;
+        while ((n = in.read(buff)) > 0) {
+            if (out.size() + n > MAX_REQUEST_SIZE) {
+                return null;
+            }
+            out.write(buff, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] data = String.valueOf(text).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        // with a fixed length, the connection can be kept alive
+        exchange.sendResponseHeaders(status, data.length == 0 ? -1 : data.length);
+        if (data.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        }
+    }
+
+    /**
+     * A function of a query that may fail with a parse exception.
+     */
+    private interface Function {
+        String apply(String query) throws ParseException;
+    }
+
+    /**
+     * A function of a list of queries.
+     */
+    private interface BatchFunction {
+        String apply(List<String> queries) throws ParseException;
+    }
+
+}
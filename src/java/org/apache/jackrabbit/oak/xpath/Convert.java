@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * A command line tool that converts XPath queries to SQL2, and is optimized
+ * for a short start-up time, so that it can be called once per query (for
+ * example from a script). The queries are the arguments, or the lines of
+ * stdin if there are none. Errors are written as "Error: ...".
+ * <p>
+ * Most of the start-up time is spent loading and verifying classes. The
+ * launcher script bin/oak-xpath therefore uses a class data sharing archive,
+ * created by a training run of this class (option -train), and only the
+ * client compiler. With -timing, the time from the start of the JVM to the
+ * main method, and the time of the first conversion, are written to stderr.
+ */
+public class Convert {
+
+    /**
+     * Queries that are converted in the training run, so that the classes
+     * used by the common code paths are in the archive.
+     */
+    private static final String[] TRAINING_QUERIES = {
+        "//element(*, cq:Page)[jcr:contains(., 'x') and @a = 1 or @b > 2.5]" +
+            "/jcr:content order by @jcr:score descending",
+        "/jcr:root/content//*[@x = $v or not(@y)]/(@a|@b) option(traversal ok)",
+        "/jcr:root/content/a/b[jcr:like(fn:lower-case(@c), 'a%') and rep:native('x', 'y')]",
+        "//*[(@a = 1 or @b = 2) and jcr:like(fn:name(), '_x0030_%')]",
+        "/jcr:root/x/element(y, nt:base)[@z = xs:dateTime('2020-01-01T00:00:00.000Z')]",
+        "//element(*, nt:unstructured)[rep:similar(., '/a')] invalid",
+    };
+
+    public static void main(String... args) throws IOException {
+        long mainNanos = System.nanoTime();
+        long mainMillis = System.currentTimeMillis();
+        boolean timing = false;
+        int first = 0;
+        for (; first < args.length; first++) {
+            String a = args[first];
+            if ("-timing".equals(a)) {
+                timing = true;
+            } else if ("-train".equals(a)) {
+                train();
+                return;
+            } else if ("--".equals(a)) {
+                first++;
+                break;
+            } else if (a.startsWith("-")) {
+                System.err.println("Usage: java " + Convert.class.getName() +
+                        " [-timing] [-train] [<query>...]");
+                System.err.println("Reads one query per line from stdin if there are no queries.");
+                System.exit(1);
+                return;
+            } else {
+                break;
+            }
+        }
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        XPathToSQL2Converter converter = XPathToSQL2Converter.getConverter();
+        long firstNanos = -1;
+        if (first < args.length) {
+            for (int i = first; i < args.length; i++) {
+                long start = System.nanoTime();
+                out.println(convert(converter, args[i]));
+                if (firstNanos < 0) {
+                    firstNanos = System.nanoTime() - start;
+                }
+            }
+        } else {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            for (String line; (line = in.readLine()) != null;) {
+                long start = System.nanoTime();
+                out.println(line.trim().isEmpty() ? "" : convert(converter, line));
+                if (firstNanos < 0) {
+                    firstNanos = System.nanoTime() - start;
+                }
+            }
+        }
+        out.flush();
+        if (timing) {
+            printTiming(mainMillis, firstNanos, System.nanoTime() - mainNanos);
+        }
+    }
+
+    /**
+     * Convert a query, or get the error message.
+     *
+     * @param converter the converter
+     * @param query the query
+     * @return the SQL2 query, or "Error: " followed by the message
+     */
+    static String convert(XPathToSQL2Converter converter, String query) {
+        ConversionResult r = converter.convertOrError(query);
+        if (r.isSuccess()) {
+            return r.getSQL2();
+        }
+        String message = String.valueOf(r.getError().getMessage());
+        return QueryLogConverter.ERROR_PREFIX + message.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Run the common code paths once, so that the classes are loaded. This
+     * is used to create the class data sharing archive.
+     */
+    static void train() {
+        XPathToSQL2Converter converter = XPathToSQL2Converter.getConverter();
+        for (String q : TRAINING_QUERIES) {
+            convert(converter, q);
+            try {
+                QueryFingerprint.ofXPath(q);
+            } catch (ParseException e) {
+                // expected for the invalid query
+            }
+        }
+    }
+
+    private static void printTiming(long mainMillis, long firstNanos, long mainNanos) {
+        // the management classes are only loaded now, so that this doesn't
+        // affect the measurement
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.err.println("JVM start to main: " + (mainMillis - jvmStart) + " ms" +
+                ", first conversion: " +
+                (firstNanos < 0 ? "-" : String.format("%.2f ms", firstNanos / 1_000_000.0)) +
+                ", main: " + String.format("%.2f ms", mainNanos / 1_000_000.0));
+    }
+
+}
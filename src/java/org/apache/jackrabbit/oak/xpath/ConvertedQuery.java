@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.util.List;
+
+/**
+ * The result of converting an XPath query: the statement tree, and the SQL2
+ * query. Query engines can build the execution plan from the tree, instead
+ * of parsing the SQL2 query again.
+ * <p>
+ * The SQL2 query is only rendered when needed. The statement tree must not
+ * be modified; then instances can be shared between threads.
+ */
+public class ConvertedQuery {
+
+    private final String xpath;
+    private final Statement statement;
+    private volatile String sql2;
+
+    ConvertedQuery(String xpath, Statement statement) {
+        this.xpath = xpath;
+        this.statement = statement;
+    }
+
+    /**
+     * Get the XPath query that was converted.
+     *
+     * @return the XPath query
+     */
+    public String getXPath() {
+        return xpath;
+    }
+
+    /**
+     * Get the statement tree. For a union, see
+     * {@link Statement#getUnionStatements()}.
+     *
+     * @return the statement
+     */
+    public Statement getStatement() {
+        return statement;
+    }
+
+    /**
+     * Whether the query is a union of multiple statements.
+     *
+     * @return true if yes
+     */
+    public boolean isUnion() {
+        return statement.isUnion();
+    }
+
+    /**
+     * Get the statements of the union, or a list with one statement if this
+     * is not a union.
+     *
+     * @return the statements
+     */
+    public List<Statement> getUnionStatements() {
+        return statement.getUnionStatements();
+    }
+
+    /**
+     * Get the SQL2 query.
+     *
+     * @return the SQL2 query
+     */
+    public String getSQL2() {
+        String s = sql2;
+        if (s == null) {
+            // concurrent calls render the same string
+            s = statement.toString();
+            sql2 = s;
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return getSQL2();
+    }
+
+}
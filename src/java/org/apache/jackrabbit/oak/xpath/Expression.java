@@ -17,13 +17,15 @@
 package org.apache.jackrabbit.oak.xpath;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 /**
- * An expression.
+ * An expression. The expression tree of a converted query can be read using
+ * the getter methods of the subclasses; it should not be modified.
  */
-abstract class Expression {
+public abstract class Expression {
     
     static final int PRECEDENCE_OR = 1, PRECEDENCE_AND = 2, 
             PRECEDENCE_CONDITION = 3, PRECEDENCE_OPERAND = 4;
@@ -41,9 +43,42 @@ abstract class Expression {
         } else if (add == null) {
             return old;
         }
+        // nested "and" conditions are flattened
         return new Expression.AndCondition(old, add);
     }
     
+    /**
+     * Append the SQL2 representation of this expression.
+     *
+     * @param buff the target buffer
+     */
+    abstract void appendTo(StringBuilder buff);
+
+    /**
+     * Append an operand, in parenthesis if the operand has a lower
+     * precedence than the given operator precedence.
+     *
+     * @param buff the target buffer
+     * @param e the operand
+     * @param precedence the operator precedence
+     */
+    static void appendOperand(StringBuilder buff, Expression e, int precedence) {
+        if (e.getPrecedence() < precedence) {
+            buff.append('(');
+            e.appendTo(buff);
+            buff.append(')');
+        } else {
+            e.appendTo(buff);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        appendTo(buff);
+        return buff.toString();
+    }
+
     /**
      * Get the optimized expression.
      * 
@@ -94,15 +129,6 @@ abstract class Expression {
         return null;
     }
 
-    /**
-     * Pull an OR condition up to the right hand side of an AND condition.
-     * 
-     * @return the (possibly rotated) expression
-     */
-    Expression pullOrRight() {
-        return this;
-    }
-    
     /**
      * Get the operator / operation precedence. The JCR specification uses:
      * 1=OR, 2=AND, 3=condition, 4=operand  
@@ -151,7 +177,7 @@ abstract class Expression {
     /**
      * A literal expression.
      */
-    static class Literal extends Expression {
+    public static class Literal extends Expression {
     
         final String value;
         final String rawText;
@@ -160,6 +186,26 @@ abstract class Expression {
             this.value = value;
             this.rawText = rawText;
         }
+
+        /**
+         * Get the value as used in the SQL2 query (for strings, quoted and
+         * escaped).
+         *
+         * @return the value
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Get the value as it appeared in the XPath query (for strings,
+         * without quotes).
+         *
+         * @return the raw value
+         */
+        public String getRawText() {
+            return rawText;
+        }
     
         public static Expression newBoolean(boolean value) {
             return new Literal(String.valueOf(value), String.valueOf(value));
@@ -178,8 +224,8 @@ abstract class Expression {
         }
     
         @Override
-        public String toString() {
-            return value;
+        void appendTo(StringBuilder buff) {
+            buff.append(value);
         }
     
     }
@@ -187,7 +233,7 @@ abstract class Expression {
     /**
      * A condition.
      */
-    static class Condition extends Expression {
+    public static class Condition extends Expression {
     
         final Expression left;
         final String operator;
@@ -208,6 +254,33 @@ abstract class Expression {
             this.right = right;
             this.precedence = precedence;
         }
+
+        /**
+         * Get the left hand side operand.
+         *
+         * @return the operand, or null
+         */
+        public Expression getLeftOperand() {
+            return left;
+        }
+
+        /**
+         * Get the operator, for example "=", "like", or "is not null".
+         *
+         * @return the operator
+         */
+        public String getOperator() {
+            return operator;
+        }
+
+        /**
+         * Get the right hand side operand.
+         *
+         * @return the operand, or null
+         */
+        public Expression getRightOperand() {
+            return right;
+        }
         
         @Override
         int getPrecedence() {
@@ -216,7 +289,9 @@ abstract class Expression {
              
         @Override
         String getCommonLeftPart() {
-            if (!"=".equals(operator)) {
+            if (!"=".equals(operator) || left instanceof Literal) {
+                // a literal on the left hand side is not merged, because
+                // when preparing a template, the value is not known
                 return null;
             }
             return left.toString();
@@ -238,6 +313,11 @@ abstract class Expression {
             if (!"jcr:primaryType".equals(p.name)) {
                 return null;
             }
+            if (!l.value.startsWith("'") || l.rawText.isEmpty() ||
+                    l.rawText.indexOf(']') >= 0) {
+                // not a string, or not a valid node type name
+                return null;
+            }
             if (selectorName != null && !selectorName.equals(p.selector.name)) {
                 return null;
             }
@@ -255,51 +335,58 @@ abstract class Expression {
         }
     
         @Override
-        public String toString() {
-            String leftExpr;
-            boolean leftExprIsName;
-            if (left == null) {
-                leftExprIsName = false;
-                leftExpr = "";
-            } else {
-                leftExprIsName = left.isName();
-                leftExpr = left.toString();
+        void appendTo(StringBuilder buff) {
+            if (left != null && right != null && left.isName() && !"like".equals(operator)) {
+                // need to de-escape _x0020_ and so on
+                if (!(right instanceof Literal)) {
+                    throw new IllegalArgumentException(
+                            "Can only compare a name against a string literal, not " + right);
+                }
+                String leftExpr = left.toString();
                 if (left.getPrecedence() < precedence) {
                     leftExpr = "(" + leftExpr + ")";
                 }
-            }
-            boolean impossible = false;
-            String rightExpr;
-            if (right == null) {
-                rightExpr = "";
-            } else {
-                if (leftExprIsName && !"like".equals(operator)) {
-                    // need to de-escape _x0020_ and so on
-                    if (!(right instanceof Literal)) {
-                        throw new IllegalArgumentException(
-                                "Can only compare a name against a string literal, not " + right);
-                    }
-                    Literal l = (Literal) right;
-                    String raw = l.rawText;
-                    String decoded = ISO9075.decode(raw);
-                    String encoded = ISO9075.encode(decoded);
-                    rightExpr = SQL2Parser.escapeStringLiteral(decoded);
-                    if (!encoded.equalsIgnoreCase(raw)) {
-                        // nothing can potentially match
-                        impossible = true;
-                    }
+                Literal l = (Literal) right;
+                int slot = PreparedQuery.getSlot(l.rawText);
+                if (slot >= 0) {
+                    // a template slot: the value is not known yet
+                    buff.append(PreparedQuery.nameMarker(slot, leftExpr, operator));
                 } else {
-                    rightExpr = right.toString();
-                }
-                if (right.getPrecedence() < precedence) {
-                    rightExpr = "(" + right + ")";
+                    appendNameCondition(buff, leftExpr, operator, l.rawText);
                 }
+                return;
+            }
+            if (left != null) {
+                appendOperand(buff, left, precedence);
+                buff.append(' ');
             }
-            if (impossible) {
+            buff.append(operator);
+            if (right != null) {
+                buff.append(' ');
+                appendOperand(buff, right, precedence);
+            }
+        }
+
+        /**
+         * Get the condition where a name is compared against a string
+         * literal.
+         *
+         * @param buff the target buffer
+         * @param leftExpr the left hand side (a name)
+         * @param operator the operator
+         * @param raw the raw (ISO9075 encoded) text of the literal
+         */
+        static void appendNameCondition(StringBuilder buff, String leftExpr,
+                String operator, String raw) {
+            String decoded = ISO9075.decode(raw);
+            String encoded = ISO9075.encode(decoded);
+            if (!encoded.equalsIgnoreCase(raw)) {
                 // a condition that can not possibly be true
-                return "upper(" + leftExpr + ") = 'never matches'";
+                buff.append("upper(").append(leftExpr).append(") = 'never matches'");
+                return;
             }
-            return (leftExpr + " " + operator + " " + rightExpr).trim();
+            buff.append(leftExpr).append(' ').append(operator).append(' ');
+            buff.append(SQL2Parser.escapeStringLiteral(decoded));
         }
     
         @Override
@@ -314,83 +401,180 @@ abstract class Expression {
     
     }
     
+    /**
+     * A list of conditions that are combined with the same operator ("and"
+     * or "or"). Nested lists with the same operator are flattened.
+     */
+    public abstract static class ListCondition extends Expression {
+
+        final ArrayList<Expression> list;
+        final String operator;
+        final int precedence;
+
+        ListCondition(List<Expression> list, String operator, int precedence) {
+            this.operator = operator;
+            this.precedence = precedence;
+            this.list = new ArrayList<Expression>(list.size());
+            for (Expression e : list) {
+                add(e);
+            }
+        }
+
+        /**
+         * Get the conditions.
+         *
+         * @return the unmodifiable list of conditions
+         */
+        public List<Expression> getConditions() {
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * Get the operator ("and" or "or").
+         *
+         * @return the operator
+         */
+        public String getOperator() {
+            return operator;
+        }
+
+        private void add(Expression e) {
+            if (e.getClass() == getClass()) {
+                list.addAll(((ListCondition) e).list);
+            } else {
+                list.add(e);
+            }
+        }
+
+        @Override
+        int getPrecedence() {
+            return precedence;
+        }
+
+        @Override
+        boolean isCondition() {
+            return true;
+        }
+
+        @Override
+        boolean containsFullTextCondition() {
+            for (Expression e : list) {
+                if (e.containsFullTextCondition()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Optimize the conditions of the list.
+         *
+         * @return the optimized list, or null if nothing changed
+         */
+        ArrayList<Expression> optimizeList() {
+            ArrayList<Expression> result = null;
+            for (int i = 0; i < list.size(); i++) {
+                Expression e = list.get(i);
+                Expression o = e.optimize();
+                if (o != e && result == null) {
+                    result = new ArrayList<Expression>(list.subList(0, i));
+                }
+                if (result != null) {
+                    result.add(o);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        void appendTo(StringBuilder buff) {
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    buff.append(' ').append(operator).append(' ');
+                }
+                appendOperand(buff, list.get(i), precedence);
+            }
+        }
+
+    }
+
     /**
      * An "or" condition.
      */
-    static class OrCondition extends Condition {
+    public static class OrCondition extends ListCondition {
 
         OrCondition(Expression left, Expression right) {
-            super(left, "or", right, Expression.PRECEDENCE_OR);
+            this(Arrays.asList(left, right));
+        }
+
+        OrCondition(List<Expression> list) {
+            super(list, "or", Expression.PRECEDENCE_OR);
         }
 
         /**
          * Get the left-hand-side expression if it is the same for
-         * both sides. For example, for x=1 or x=2, it is x,
+         * all conditions. For example, for x=1 or x=2, it is x,
          * but for x=1 or y=2, it is null
          * 
          * @return the left-hand-side expression, or null
          */
         @Override
         public String getCommonLeftPart() {
-            String l = left.getCommonLeftPart();
-            String r = right.getCommonLeftPart();
-            if (l != null && r != null && l.equals(r)) {
-                return l;
+            String common = null;
+            for (Expression e : list) {
+                String l = e.getCommonLeftPart();
+                if (l == null || (common != null && !common.equals(l))) {
+                    return null;
+                }
+                common = l;
             }
-            return null;
+            return common;
         }
         
         @Override
         Expression optimize() {
-            Expression l = left.optimize();
-            Expression r = right.optimize();
-            if (l != left || r != right) {
-                return new OrCondition(l, r).optimize();
+            ArrayList<Expression> terms = optimizeList();
+            if (terms == null) {
+                terms = list;
             }
-            String commonLeft = getCommonLeftPart();
-            if (commonLeft == null) {
-                // the case:
-                // (other>0 or x=1) or x=2
-                // can be converted to:
-                // other>0 or (x=1 or x=2)
-                // which can then be optimized
-                if (left instanceof OrCondition) {
-                    OrCondition orLeft = (OrCondition) left;
-                    Expression l1 = orLeft.left;
-                    Expression l2 = orLeft.right;
-                    OrCondition orRight = new OrCondition(l2, right);
-                    Expression o2 = orRight.optimize();
-                    if (o2 != orRight) {
-                        return new OrCondition(l1, o2);
+            // "@x = 1 or @x = 2" is converted to "@x in (1, 2)", for each
+            // run of conditions with the same left hand side
+            ArrayList<Expression> result = null;
+            int size = terms.size();
+            for (int i = 0; i < size;) {
+                Expression e = terms.get(i);
+                String commonLeft = e.getCommonLeftPart();
+                int end = i + 1;
+                if (commonLeft != null && !(XPathToSQL2Converter.NODETYPE_UNION &&
+                        commonLeft.endsWith("[jcr:primaryType]"))) {
+                    while (end < size && commonLeft.equals(terms.get(end).getCommonLeftPart())) {
+                        end++;
                     }
                 }
-                return this;
-            }
-            // "@x = 1 or @x = 2" is converted to "@x in (1, 2)"
-            if (left instanceof InCondition) {
-                InCondition in = (InCondition) left;
-                in.list.addAll(right.getRight());
-                // return a new instance, because we changed
-                // the list
-                in = new InCondition(in.getLeft(), in.list);
-                return in;
+                if (end - i > 1) {
+                    if (result == null) {
+                        result = new ArrayList<Expression>(terms.subList(0, i));
+                    }
+                    ArrayList<Expression> values = new ArrayList<Expression>();
+                    for (int j = i; j < end; j++) {
+                        values.addAll(terms.get(j).getRight());
+                    }
+                    result.add(new InCondition(e.getLeft(), values));
+                } else if (result != null) {
+                    result.add(e);
+                }
+                i = end;
             }
-            Expression le = left.getLeft();
-            if (XPathToSQL2Converter.NODETYPE_UNION) {
-                if (commonLeft.endsWith("[jcr:primaryType]")) {
+            if (result == null) {
+                if (terms == list) {
                     return this;
                 }
+                result = terms;
             }
-            ArrayList<Expression> list = new ArrayList<Expression>();
-            list.addAll(left.getRight());
-            list.addAll(right.getRight());
-            InCondition in = new InCondition(le, list);
-            return in;
-        }
-        
-        @Override
-        boolean containsFullTextCondition() {
-            return left.containsFullTextCondition() || right.containsFullTextCondition();
+            if (result.size() == 1) {
+                return result.get(0);
+            }
+            return new OrCondition(result);
         }
         
     }
@@ -398,7 +582,7 @@ abstract class Expression {
     /**
      * An "or" condition.
      */
-    static class InCondition extends Expression {
+    public static class InCondition extends Expression {
 
         final Expression left;
         final List<Expression> list;
@@ -407,6 +591,19 @@ abstract class Expression {
             this.left = left;
             this.list = list;
         }
+
+        public Expression getLeftOperand() {
+            return left;
+        }
+
+        /**
+         * Get the values.
+         *
+         * @return the unmodifiable list of values
+         */
+        public List<Expression> getValues() {
+            return Collections.unmodifiableList(list);
+        }
         
         @Override
         String getCommonLeftPart() {
@@ -424,16 +621,16 @@ abstract class Expression {
         }
     
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder();
-            buff.append(left).append(" in(");
+        void appendTo(StringBuilder buff) {
+            left.appendTo(buff);
+            buff.append(" in(");
             for (int i = 0; i < list.size(); i++) {
                 if (i > 0) {
                     buff.append(", ");
                 }
-                buff.append(list.get(i));
+                list.get(i).appendTo(buff);
             }
-            return buff.append(')').toString();
+            buff.append(')');
         }
     
         @Override
@@ -446,69 +643,34 @@ abstract class Expression {
     /**
      * An "and" condition.
      */
-    static class AndCondition extends Condition {
+    public static class AndCondition extends ListCondition {
 
         AndCondition(Expression left, Expression right) {
-            super(left, "and", right, Expression.PRECEDENCE_AND);
+            this(Arrays.asList(left, right));
+        }
+
+        AndCondition(List<Expression> list) {
+            super(list, "and", Expression.PRECEDENCE_AND);
         }
 
         @Override
         Expression optimize() {
-            Expression l = left.optimize();
-            Expression r = right.optimize();
-            if (l != left || r != right) {
-                return new AndCondition(l, r);
+            ArrayList<Expression> terms = optimizeList();
+            if (terms != null) {
+                return new AndCondition(terms);
             }
             return this;
         }
         
         @Override
         public String getMostSpecificNodeType(String selectorName) {
-            String nt = left.getMostSpecificNodeType(selectorName);
-            if (nt != null) {
-                return nt;
-            }
-            return right.getMostSpecificNodeType(selectorName);
-        }
-        
-        @Override
-        AndCondition pullOrRight() {
-            ArrayList<Expression> list = getAllAndConditions();
-            OrCondition or = null;
-            Expression result = null;
-            for(Expression e : list) {
-                if (e instanceof OrCondition && or == null) {
-                    or = (OrCondition) e;
-                } else if (result == null) {
-                    result = e;
-                } else {
-                    result = new AndCondition(result, e);
+            for (Expression e : list) {
+                String nt = e.getMostSpecificNodeType(selectorName);
+                if (nt != null) {
+                    return nt;
                 }
             }
-            if (or != null) {
-                result = new AndCondition(result, or);
-            }
-            return (AndCondition) result;
-        }
-        
-        private ArrayList<Expression> getAllAndConditions() {
-            ArrayList<Expression> list = new ArrayList<Expression>();
-            if (left instanceof AndCondition) {
-                list.addAll(((AndCondition) left).getAllAndConditions());
-            } else {
-                list.add(left);
-            }
-            if (right instanceof AndCondition) {
-                list.addAll(((AndCondition) right).getAllAndConditions());
-            } else {
-                list.add(right);
-            }
-            return list;
-        }
-        
-        @Override
-        boolean containsFullTextCondition() {
-            return left.containsFullTextCondition() || right.containsFullTextCondition();
+            return null;
         }
         
     }
@@ -516,7 +678,7 @@ abstract class Expression {
     /**
      * A contains call.
      */
-    static class Contains extends Expression {
+    public static class Contains extends Expression {
         
         final Expression left, right;
     
@@ -524,10 +686,28 @@ abstract class Expression {
             this.left = left;
             this.right = right;
         }
+
+        /**
+         * Get the property or node to search in.
+         *
+         * @return the property
+         */
+        public Expression getProperty() {
+            return left;
+        }
+
+        /**
+         * Get the full-text search expression.
+         *
+         * @return the expression
+         */
+        public Expression getExpression() {
+            return right;
+        }
     
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder("contains(");
+        void appendTo(StringBuilder buff) {
+            buff.append("contains(");
             Expression l = left;
             if (l instanceof Property) {
                 Property p = (Property) l;
@@ -535,9 +715,10 @@ abstract class Expression {
                     l = new Property(p.selector, p.name + "/*", true);
                 }
             }
-            buff.append(l);
-            buff.append(", ").append(right).append(')');
-            return buff.toString();
+            l.appendTo(buff);
+            buff.append(", ");
+            right.appendTo(buff);
+            buff.append(')');
         }
     
         @Override
@@ -560,7 +741,7 @@ abstract class Expression {
     /**
      * A native call.
      */
-    static class NativeFunction extends Expression {
+    public static class NativeFunction extends Expression {
         
         final String selector;
         final Expression language, expression;
@@ -570,13 +751,28 @@ abstract class Expression {
             this.language = language;
             this.expression = expression;
         }
+
+        public String getSelectorName() {
+            return selector;
+        }
+
+        public Expression getLanguage() {
+            return language;
+        }
+
+        public Expression getExpression() {
+            return expression;
+        }
     
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder("native(");
-            buff.append(selector);
-            buff.append(", ").append(language).append(", ").append(expression).append(')');
-            return buff.toString();
+        void appendTo(StringBuilder buff) {
+            buff.append("native(");
+            Selector.appendName(buff, selector);
+            buff.append(", ");
+            language.appendTo(buff);
+            buff.append(", ");
+            expression.appendTo(buff);
+            buff.append(')');
         }
     
         @Override
@@ -599,7 +795,7 @@ abstract class Expression {
     /**
      * A rep:similar condition.
      */
-    static class Similar extends Expression {
+    public static class Similar extends Expression {
         
         final Expression property, path;
     
@@ -607,13 +803,22 @@ abstract class Expression {
             this.property = property;
             this.path = path;
         }
+
+        public Expression getProperty() {
+            return property;
+        }
+
+        public Expression getPath() {
+            return path;
+        }
     
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder("similar(");
-            buff.append(property);
-            buff.append(", ").append(path).append(')');
-            return buff.toString();
+        void appendTo(StringBuilder buff) {
+            buff.append("similar(");
+            property.appendTo(buff);
+            buff.append(", ");
+            path.appendTo(buff);
+            buff.append(')');
         }
     
         @Override
@@ -631,7 +836,7 @@ abstract class Expression {
     /**
      * A rep:spellcheck condition.
      */
-    static class Spellcheck extends Expression {
+    public static class Spellcheck extends Expression {
 
         final Expression term;
 
@@ -639,12 +844,15 @@ abstract class Expression {
             this.term = term;
         }
 
+        public Expression getTerm() {
+            return term;
+        }
+
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder("spellcheck(");
-            buff.append(term);
+        void appendTo(StringBuilder buff) {
+            buff.append("spellcheck(");
+            term.appendTo(buff);
             buff.append(')');
-            return buff.toString();
         }
 
         @Override
@@ -662,7 +870,7 @@ abstract class Expression {
     /**
      * A rep:suggest condition.
      */
-    static class Suggest extends Expression {
+    public static class Suggest extends Expression {
 
         final Expression term;
 
@@ -670,12 +878,15 @@ abstract class Expression {
             this.term = term;
         }
 
+        public Expression getTerm() {
+            return term;
+        }
+
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder("suggest(");
-            buff.append(term);
+        void appendTo(StringBuilder buff) {
+            buff.append("suggest(");
+            term.appendTo(buff);
             buff.append(')');
-            return buff.toString();
         }
 
         @Override
@@ -693,7 +904,7 @@ abstract class Expression {
     /**
      * A function call.
      */
-    static class Function extends Expression {
+    public static class Function extends Expression {
     
         final String name;
         final ArrayList<Expression> params = new ArrayList<Expression>();
@@ -701,19 +912,30 @@ abstract class Expression {
         Function(String name) {
             this.name = name;
         }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the parameters.
+         *
+         * @return the unmodifiable list of parameters
+         */
+        public List<Expression> getParams() {
+            return Collections.unmodifiableList(params);
+        }
     
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder(name);
-            buff.append('(');
+        void appendTo(StringBuilder buff) {
+            buff.append(name).append('(');
             for (int i = 0; i < params.size(); i++) {
                 if (i > 0) {
                     buff.append(", ");
                 }
-                buff.append(params.get(i).toString());
+                params.get(i).appendTo(buff);
             }
             buff.append(')');
-            return buff.toString();
         }
     
         @Override
@@ -734,7 +956,7 @@ abstract class Expression {
     /**
      * A cast operation.
      */
-    static class Cast extends Expression {
+    public static class Cast extends Expression {
     
         final Expression expr;
         final String type;
@@ -743,13 +965,20 @@ abstract class Expression {
             this.expr = expr;
             this.type = type;
         }
+
+        public Expression getExpression() {
+            return expr;
+        }
+
+        public String getType() {
+            return type;
+        }
     
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder("cast(");
-            buff.append(expr.toString());
+        void appendTo(StringBuilder buff) {
+            buff.append("cast(");
+            expr.appendTo(buff);
             buff.append(" as ").append(type).append(')');
-            return buff.toString();
         }
     
         @Override
@@ -762,17 +991,21 @@ abstract class Expression {
     /**
      * A selector parameter.
      */
-    static class SelectorExpr extends Expression {
+    public static class SelectorExpr extends Expression {
     
         private final Selector selector;
     
         SelectorExpr(Selector selector) {
             this.selector = selector;
         }
+
+        public String getSelectorName() {
+            return selector.name;
+        }
     
         @Override
-        public String toString() {
-            return selector.name;
+        void appendTo(StringBuilder buff) {
+            Selector.appendName(buff, selector.name);
         }
     
     }
@@ -780,12 +1013,17 @@ abstract class Expression {
     /**
      * A property expression.
      */
-    static class Property extends Expression {
+    public static class Property extends Expression {
     
         final Selector selector;
         final String name;
-        private String cacheString;
-        private boolean cacheOnlySelector;
+
+        /**
+         * The name as used in SQL2 ("*" or "[name]"), without the selector.
+         * The selector prefix is added when rendering, as whether it is
+         * needed is only known after parsing.
+         */
+        private final String sql2Name;
         
         /**
          * If there was no "@" character in front of the property name. If that
@@ -798,27 +1036,40 @@ abstract class Expression {
             this.selector = selector;
             this.name = name;
             this.thereWasNoAt = thereWasNoAt;
+            this.sql2Name = "*".equals(name) ? "*" : "[" + name + "]";
+        }
+
+        public String getSelectorName() {
+            return selector.name;
+        }
+
+        /**
+         * Get the property name, for example "jcr:title", "*", or a relative
+         * path such as "jcr:content/jcr:title".
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
         }
     
         @Override
         public String toString() {
-            if (cacheString != null) {
-                if (cacheOnlySelector == selector.onlySelector) {
-                    return cacheString;
-                }
+            if (selector.onlySelector) {
+                return sql2Name;
             }
             StringBuilder buff = new StringBuilder();
+            appendTo(buff);
+            return buff.toString();
+        }
+
+        @Override
+        void appendTo(StringBuilder buff) {
             if (!selector.onlySelector) {
-                buff.append(selector.name).append('.');
-            }
-            if (name.equals("*")) {
-                buff.append('*');
-            } else {
-                buff.append('[').append(name).append(']');
+                Selector.appendName(buff, selector.name);
+                buff.append('.');
             }
-            cacheString = buff.toString();
-            cacheOnlySelector = selector.onlySelector;
-            return cacheString;
+            buff.append(sql2Name);
         }
         
         @Override
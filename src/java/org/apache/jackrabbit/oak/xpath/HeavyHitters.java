@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the keys with the highest weight in a stream, using a fixed amount
+ * of memory. This is the "space-saving" algorithm: at most capacity keys
+ * are tracked; if a new key arrives and all slots are used, the key with
+ * the lowest weight is replaced, and the new key inherits its weight (which
+ * is then the maximum error of the new key).
+ * <p>
+ * The weight is used for ranking, for example 1 per entry to find the most
+ * frequent keys, or the duration to find the keys with the highest total
+ * time. The number of entries and the total time are tracked as well, but
+ * only while the key is in the sketch, so they are lower bounds.
+ * <p>
+ * Keys are primitive longs, such as query fingerprints. All state is kept
+ * in arrays that are allocated up front. Sketches can be merged, so that
+ * parts of a stream can be processed in parallel. Instances are not
+ * thread-safe.
+ */
+public class HeavyHitters {
+
+    private final int capacity;
+    private int size;
+
+    // The tracked keys, by slot
+    private final long[] keys, weights, errors, counts, times;
+    private final String[] samples;
+
+    // A min-heap of the slots, by weight, and the heap position per slot
+    private final int[] heap, heapPos;
+
+    // The hash table of the keys (open addressing): slot + 1, or 0 if empty
+    private final int[] table;
+    private final int mask;
+
+    public HeavyHitters(int capacity) {
+        if (capacity < 1 || capacity > 1 << 28) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        keys = new long[capacity];
+        weights = new long[capacity];
+        errors = new long[capacity];
+        counts = new long[capacity];
+        times = new long[capacity];
+        samples = new String[capacity];
+        heap = new int[capacity];
+        heapPos = new int[capacity];
+        // at most half full
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        mask = table.length - 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of keys that are tracked.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param key the key
+     * @param weight the weight, used for ranking (must not be negative)
+     * @param time the time of the entry
+     * @param sample an example of the entry, for example the query (only
+     *            kept when the key is added to the sketch)
+     */
+    public void add(long key, long weight, long time, String sample) {
+        int slot = find(key);
+        if (slot >= 0) {
+            weights[slot] += weight;
+            counts[slot]++;
+            times[slot] += time;
+            siftDown(heapPos[slot]);
+        } else if (size < capacity) {
+            put(key, weight, 0, 1, time, sample);
+        } else {
+            // replace the key with the lowest weight
+            slot = heap[0];
+            long min = weights[slot];
+            remove(keys[slot]);
+            keys[slot] = key;
+            weights[slot] = min + weight;
+            errors[slot] = min;
+            counts[slot] = 1;
+            times[slot] = time;
+            samples[slot] = sample;
+            insert(key, slot);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Merge the entries of another sketch into this sketch. Keys that are
+     * only tracked in one of the sketches may have been evicted from the
+     * other, so the lowest weight of the other sketch is added to their
+     * weight and error.
+     *
+     * @param other the other sketch (not modified)
+     */
+    public void merge(HeavyHitters other) {
+        long min1 = size < capacity ? 0 : weights[heap[0]];
+        long min2 = other.size < other.capacity ? 0 : other.weights[other.heap[0]];
+        // the combined entries, by key
+        HashMap<Long, Entry> map = new HashMap<Long, Entry>(2 * (size + other.size));
+        for (int i = 0; i < size; i++) {
+            map.put(keys[i], new Entry(keys[i], weights[i] + min2, errors[i] + min2,
+                    counts[i], times[i], samples[i]));
+        }
+        for (int i = 0; i < other.size; i++) {
+            long k = other.keys[i];
+            Entry e = map.get(k);
+            if (e == null) {
+                map.put(k, new Entry(k, other.weights[i] + min1, other.errors[i] + min1,
+                        other.counts[i], other.times[i], other.samples[i]));
+            } else {
+                // the minimum was added, but the key is in both sketches
+                map.put(k, new Entry(k, e.weight - min2 + other.weights[i],
+                        e.error - min2 + other.errors[i], e.count + other.counts[i],
+                        e.time + other.times[i], e.sample));
+            }
+        }
+        ArrayList<Entry> list = new ArrayList<Entry>(map.values());
+        Collections.sort(list);
+        clear();
+        for (int i = 0; i < list.size() && i < capacity; i++) {
+            Entry e = list.get(i);
+            put(e.key, e.weight, e.error, e.count, e.time, e.sample);
+        }
+    }
+
+    /**
+     * Get the keys with the highest weight.
+     *
+     * @param n the maximum number of keys
+     * @return the entries, highest weight first
+     */
+    public List<Entry> getTop(int n) {
+        ArrayList<Entry> list = new ArrayList<Entry>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Entry(keys[i], weights[i], errors[i], counts[i], times[i], samples[i]));
+        }
+        Collections.sort(list);
+        return list.size() <= n ? list : new ArrayList<Entry>(list.subList(0, n));
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        size = 0;
+        Arrays.fill(table, 0);
+        Arrays.fill(samples, null);
+    }
+
+    private void put(long key, long weight, long error, long count, long time, String sample) {
+        int slot = size++;
+        keys[slot] = key;
+        weights[slot] = weight;
+        errors[slot] = error;
+        counts[slot] = count;
+        times[slot] = time;
+        samples[slot] = sample;
+        insert(key, slot);
+        heap[slot] = slot;
+        heapPos[slot] = slot;
+        siftUp(slot);
+    }
+
+    private int home(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private int find(long key) {
+        for (int i = home(key);; i = (i + 1) & mask) {
+            int s = table[i];
+            if (s == 0) {
+                return -1;
+            } else if (keys[s - 1] == key) {
+                return s - 1;
+            }
+        }
+    }
+
+    private void insert(long key, int slot) {
+        int i = home(key);
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Remove a key from the hash table. The following entries are moved
+     * back, so that lookups don't need tombstones.
+     *
+     * @param key the key (must exist)
+     */
+    private void remove(long key) {
+        int i = home(key);
+        while (keys[table[i] - 1] != key) {
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int h = home(keys[table[j] - 1]);
+            // the entry at j can be moved to i if its home is not in (i, j]
+            boolean between = i <= j ? i < h && h <= j : i < h || h <= j;
+            if (!between) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+    private void siftUp(int pos) {
+        int slot = heap[pos];
+        long w = weights[slot];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            int p = heap[parent];
+            if (weights[p] <= w) {
+                break;
+            }
+            heap[pos] = p;
+            heapPos[p] = pos;
+            pos = parent;
+        }
+        heap[pos] = slot;
+        heapPos[slot] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int slot = heap[pos];
+        long w = weights[slot];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && weights[heap[child + 1]] < weights[heap[child]]) {
+                child++;
+            }
+            int c = heap[child];
+            if (weights[c] >= w) {
+                break;
+            }
+            heap[pos] = c;
+            heapPos[c] = pos;
+            pos = child;
+        }
+        heap[pos] = slot;
+        heapPos[slot] = pos;
+    }
+
+    /**
+     * A tracked key.
+     */
+    public static class Entry implements Comparable<Entry> {
+
+        private final long key;
+        private final long weight, error, count, time;
+        private final String sample;
+
+        Entry(long key, long weight, long error, long count, long time, String sample) {
+            this.key = key;
+            this.weight = weight;
+            this.error = error;
+            this.count = count;
+            this.time = time;
+            this.sample = sample;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * Get the weight. This is an upper bound: the real weight is at
+         * least weight - error.
+         *
+         * @return the weight
+         */
+        public long getWeight() {
+            return weight;
+        }
+
+        /**
+         * Get the maximum overestimation of the weight.
+         *
+         * @return the error
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * Get the number of entries while the key was tracked.
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the total time of the entries while the key was tracked.
+         *
+         * @return the time
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getSample() {
+            return sample;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            // highest weight first
+            return Long.compare(o.weight, weight);
+        }
+
+        @Override
+        public String toString() {
+            return QueryFingerprint.toString(key) + " weight " + weight + " (error " + error +
+                    ") count " + count + " time " + time + ": " + sample;
+        }
+
+    }
+
+}
@@ -1,106 +1,267 @@
 package org.apache.jackrabbit.oak.xpath;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+/**
+ * Encoding and decoding of names as defined by ISO 9075: characters that are
+ * not valid in an XML name are encoded as "_x" followed by four lowercase
+ * hex digits and "_", for example a space as "_x0020_" (supplementary
+ * characters that are not valid are encoded as two chars). An underscore that
+ * is followed by "x" and four hex digits is encoded as well, so that
+ * decoding is unambiguous.
+ * <p>
+ * Both directions are a single pass, and don't allocate if nothing needs to
+ * be changed: then the name itself is returned. Names that do need to be
+ * changed are kept in a small cache, because the same names tend to repeat.
+ */
+public class ISO9075 {
 
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
-public class ISO9075 {
-    
-    /** Pattern on an encoded character */
-    private static final Pattern ENCODE_PATTERN = Pattern.compile("_x\\p{XDigit}{4}_");
-    
-    /** All the possible hex digits */
-    private static final String HEX_DIGITS = "0123456789abcdefABCDEF";
-    
-    private static final char[] PADDING = new char[] {'0', '0', '0'};
-    
-    private static void encode(char c, StringBuffer b) {
-        b.append("_x");
-        String hex = Integer.toHexString(c);
-        b.append(PADDING, 0, 4 - hex.length());
-        b.append(hex);
-        b.append("_");
-    }
-    
+    /**
+     * The number of cached names per direction (a power of 2).
+     */
+    private static final int CACHE_SIZE = 256;
+
+    // Direct mapped caches. Entries are immutable, so that concurrent access
+    // is safe without synchronization (at worst, an entry is overwritten).
+    private static final Entry[] ENCODED = new Entry[CACHE_SIZE];
+    private static final Entry[] DECODED = new Entry[CACHE_SIZE];
+
+    /**
+     * Encode a name.
+     *
+     * @param name the name
+     * @return the encoded name (the same instance if nothing is encoded)
+     */
     public static String encode(String name) {
-        // quick check for root node name
-        if (name.length() == 0) {
+        int start = encodeStart(name);
+        if (start < 0) {
             return name;
         }
-        if (XMLChar.isValidName(name) && name.indexOf("_x") < 0) {
-            // already valid
-            return name;
+        int index = name.hashCode() & (CACHE_SIZE - 1);
+        Entry e = ENCODED[index];
+        if (e != null && e.name.equals(name)) {
+            return e.value;
+        }
+        StringBuilder buff = new StringBuilder(name.length() + 12);
+        encode(name, start, buff);
+        String encoded = buff.toString();
+        ENCODED[index] = new Entry(name, encoded);
+        return encoded;
+    }
+
+    /**
+     * Encode a name, and append the result to the buffer.
+     *
+     * @param name the name
+     * @param buff the target buffer
+     */
+    public static void encode(String name, StringBuilder buff) {
+        int start = encodeStart(name);
+        if (start < 0) {
+            buff.append(name);
         } else {
-            // encode
-            StringBuffer encoded = new StringBuffer();
-            for (int i = 0; i < name.length(); i++) {
-                if (i == 0) {
-                    // first character of name
-                    if (XMLChar.isNameStart(name.charAt(i))) {
-                        if (needsEscaping(name, i)) {
-                            // '_x' must be encoded
-                            encode('_', encoded);
-                        } else {
-                            encoded.append(name.charAt(i));
-                        }
-                    } else {
-                        // not valid as first character -> encode
-                        encode(name.charAt(i), encoded);
-                    }
-                } else if (!XMLChar.isName(name.charAt(i))) {
-                    encode(name.charAt(i), encoded);
+            encode(name, start, buff);
+        }
+    }
+
+    private static void encode(String name, int start, StringBuilder buff) {
+        buff.append(name, 0, start);
+        for (int i = start, length = name.length(); i < length; i++) {
+            char c = name.charAt(i);
+            if (!Character.isHighSurrogate(c)) {
+                if (needsEncoding(name, i, c)) {
+                    appendEncoded(c, buff);
                 } else {
-                    if (needsEscaping(name, i)) {
-                        // '_x' must be encoded
-                        encode('_', encoded);
-                    } else {
-                        encoded.append(name.charAt(i));
-                    }
+                    buff.append(c);
                 }
+                continue;
+            }
+            int cp = name.codePointAt(i);
+            if (cp == c) {
+                // not a pair
+                appendEncoded(c, buff);
+            } else if (needsEncoding(name, i, cp)) {
+                appendEncoded(c, buff);
+                appendEncoded(name.charAt(++i), buff);
+            } else {
+                buff.append(c).append(name.charAt(++i));
+            }
+        }
+    }
+
+    private static void appendEncoded(char c, StringBuilder buff) {
+        buff.append("_x").
+            append(HEX[(c >> 12) & 15]).append(HEX[(c >> 8) & 15]).
+            append(HEX[(c >> 4) & 15]).append(HEX[c & 15]).
+            append('_');
+    }
+
+    /**
+     * Get the index of the first character that needs to be encoded.
+     *
+     * @param name the name
+     * @return the index, or -1 if none
+     */
+    private static int encodeStart(String name) {
+        for (int i = 0, length = name.length(); i < length;) {
+            char c = name.charAt(i);
+            if (!Character.isHighSurrogate(c)) {
+                if (needsEncoding(name, i, c)) {
+                    return i;
+                }
+                i++;
+            } else {
+                int cp = name.codePointAt(i);
+                if (needsEncoding(name, i, cp)) {
+                    return i;
+                }
+                i += Character.charCount(cp);
             }
-            return encoded.toString();
         }
+        return -1;
     }
-    
+
+    /**
+     * Check whether a character needs to be encoded.
+     *
+     * @param name the name
+     * @param i the index
+     * @param c the character (a code point) at this index
+     * @return true if yes
+     */
+    private static boolean needsEncoding(String name, int i, int c) {
+        if (i == 0 ? !XMLChar.isNameStart(c) : !XMLChar.isName(c)) {
+            return true;
+        }
+        // "_x" followed by four hex digits: the underscore is encoded
+        return c == '_' && i + 5 < name.length() && name.charAt(i + 1) == 'x' &&
+                hexValue(name, i + 2) >= 0;
+    }
+
+    /**
+     * Decode a name.
+     *
+     * @param name the encoded name
+     * @return the decoded name (the same instance if nothing is decoded)
+     */
     public static String decode(String name) {
-        // quick check
-        if (name.indexOf("_x") < 0) {
-            // not encoded
+        int start = decodeStart(name);
+        if (start < 0) {
             return name;
         }
-        StringBuffer decoded = new StringBuffer();
-        Matcher m = ENCODE_PATTERN.matcher(name);
-        while (m.find()) {
-            char ch = (char) Integer.parseInt(m.group().substring(2, 6), 16);
-            if (ch == '$' || ch == '\\') {
-                m.appendReplacement(decoded, "\\" + ch);
+        int index = name.hashCode() & (CACHE_SIZE - 1);
+        Entry e = DECODED[index];
+        if (e != null && e.name.equals(name)) {
+            return e.value;
+        }
+        StringBuilder buff = new StringBuilder(name.length());
+        decode(name, start, buff);
+        String decoded = buff.toString();
+        DECODED[index] = new Entry(name, decoded);
+        return decoded;
+    }
+
+    /**
+     * Decode a name, and append the result to the buffer.
+     *
+     * @param name the encoded name
+     * @param buff the target buffer
+     */
+    public static void decode(String name, StringBuilder buff) {
+        int start = decodeStart(name);
+        if (start < 0) {
+            buff.append(name);
+        } else {
+            decode(name, start, buff);
+        }
+    }
+
+    private static void decode(String name, int start, StringBuilder buff) {
+        buff.append(name, 0, start);
+        int i = start;
+        for (int length = name.length(); i < length;) {
+            char c = name.charAt(i);
+            int x = c == '_' ? encodedChar(name, i) : -1;
+            if (x >= 0) {
+                buff.append((char) x);
+                i += 7;
             } else {
-                m.appendReplacement(decoded, Character.toString(ch));
+                buff.append(c);
+                i++;
             }
         }
-        m.appendTail(decoded);
-        return decoded.toString();
     }
-    
+
     /**
-     * Returns true if <code>name.charAt(location)</code> is the underscore
-     * character and the following character sequence is 'xHHHH_' where H
-     * is a hex digit.
-     * @param name the name to check.
-     * @param location the location to look at.
-     * @throws ArrayIndexOutOfBoundsException if location > name.length()
+     * Get the index of the first encoded character.
+     *
+     * @param name the name
+     * @return the index, or -1 if none
      */
-    private static boolean needsEscaping(String name, int location)
-            throws ArrayIndexOutOfBoundsException {
-        if (name.charAt(location) == '_' && name.length() >= location + 6) {
-            return name.charAt(location + 1) == 'x'
-                && HEX_DIGITS.indexOf(name.charAt(location + 2)) != -1
-                && HEX_DIGITS.indexOf(name.charAt(location + 3)) != -1
-                && HEX_DIGITS.indexOf(name.charAt(location + 4)) != -1
-                && HEX_DIGITS.indexOf(name.charAt(location + 5)) != -1;
-        } else {
-            return false;
+    private static int decodeStart(String name) {
+        for (int i = name.indexOf('_'); i >= 0; i = name.indexOf('_', i + 1)) {
+            if (encodedChar(name, i) >= 0) {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    /**
+     * Get the character that is encoded at the given position, in the form
+     * "_xHHHH_".
+     *
+     * @param name the name
+     * @param i the index of the first underscore
+     * @return the character, or -1 if not encoded
+     */
+    private static int encodedChar(String name, int i) {
+        if (i + 6 >= name.length() || name.charAt(i + 1) != 'x' ||
+                name.charAt(i + 6) != '_') {
+            return -1;
+        }
+        return hexValue(name, i + 2);
+    }
+
+    /**
+     * Parse four hex digits (uppercase or lowercase).
+     *
+     * @param s the string
+     * @param start the index of the first digit
+     * @return the value, or -1 if not four hex digits
+     */
+    private static int hexValue(String s, int start) {
+        int x = 0;
+        for (int i = start; i < start + 4; i++) {
+            char c = s.charAt(i);
+            int d;
+            if (c >= '0' && c <= '9') {
+                d = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                d = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                d = c - 'A' + 10;
+            } else {
+                return -1;
+            }
+            x = (x << 4) | d;
+        }
+        return x;
     }
-}
 
+    /**
+     * A cached name.
+     */
+    private static final class Entry {
+
+        final String name;
+        final String value;
+
+        Entry(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,549 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generates Lucene index definitions for a set of queries. The restrictions
+ * of each query are extracted (see {@link QueryFilter}), and the filters
+ * with the same node type and path are merged into one index, with one
+ * index rule that contains the properties of all those queries.
+ * <p>
+ * The result is JSON, in the format used by the index definition tools:
+ * properties are sorted, child nodes are in the order they were added.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class IndexDefinitionGenerator {
+
+    // The indexes, by node type and path
+    private final LinkedHashMap<String, Index> indexes = new LinkedHashMap<String, Index>();
+
+    /**
+     * Print the index definitions for the queries given as arguments, or
+     * (if there are none) for the queries read from stdin, one per line.
+     * Queries that can not be parsed are skipped; their errors are written
+     * to stderr, and the exit code is then 1.
+     *
+     * @param args the queries
+     */
+    public static void main(String... args) throws IOException {
+        ArrayList<String> queries = new ArrayList<String>(Arrays.asList(args));
+        if (queries.isEmpty()) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            for (String line; (line = in.readLine()) != null;) {
+                if (!line.trim().isEmpty()) {
+                    queries.add(line);
+                }
+            }
+        }
+        IndexDefinitionGenerator g = new IndexDefinitionGenerator();
+        List<String> errors = g.addQueries(queries);
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        out.println(g.toJson());
+        out.flush();
+        if (!errors.isEmpty()) {
+            for (String e : errors) {
+                System.err.println(e);
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Generate the index definitions for a list of queries. Empty lines are
+     * ignored.
+     *
+     * @param queries the XPath or SQL2 queries
+     * @return the index definitions (JSON)
+     * @throws ParseException if a query can not be parsed (the message
+     *             contains the errors of all such queries, one per line)
+     */
+    public static String generate(Collection<String> queries) throws ParseException {
+        IndexDefinitionGenerator g = new IndexDefinitionGenerator();
+        List<String> errors = g.addQueries(queries);
+        if (!errors.isEmpty()) {
+            throw new ParseException(String.join("\n", errors), 0);
+        }
+        return g.toJson();
+    }
+
+    /**
+     * Add a list of queries. Empty lines are ignored, and queries that can
+     * not be parsed are skipped.
+     *
+     * @param queries the XPath or SQL2 queries
+     * @return the errors of the skipped queries, one line each, in the form
+     *         "Error: " followed by the message
+     */
+    public List<String> addQueries(Collection<String> queries) {
+        ArrayList<String> errors = new ArrayList<String>();
+        for (String q : queries) {
+            if (q.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                addQuery(q);
+            } catch (ParseException e) {
+                String message = String.valueOf(e.getMessage());
+                errors.add(QueryLogConverter.ERROR_PREFIX +
+                        message.replace('\r', ' ').replace('\n', ' '));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Add a query.
+     *
+     * @param query the XPath or SQL2 query
+     * @throws ParseException if parsing fails
+     */
+    public void addQuery(String query) throws ParseException {
+        Statement s;
+        if (SQL2Parser.isSQL2(query)) {
+            s = SQL2Parser.parseQuery(query);
+        } else {
+            s = XPathToSQL2Converter.toConvertedQuery(query).getStatement();
+        }
+        addStatement(s);
+    }
+
+    /**
+     * Add the filters of a statement.
+     *
+     * @param statement the statement
+     */
+    public void addStatement(Statement statement) {
+        for (QueryFilter f : QueryFilter.of(statement)) {
+            addFilter(f);
+        }
+    }
+
+    /**
+     * Add a filter. The properties are merged into the index for the node
+     * type and path of the filter.
+     *
+     * @param filter the filter
+     */
+    public void addFilter(QueryFilter filter) {
+        String path = filter.getPathPrefix();
+        String key = filter.getNodeType() + (path == null ? "" : "\n" + path);
+        Index index = indexes.get(key);
+        if (index == null) {
+            index = new Index(filter.getNodeType(), path);
+            indexes.put(key, index);
+        }
+        index.add(filter);
+    }
+
+    /**
+     * Get the index definitions as JSON.
+     *
+     * @return the JSON string
+     */
+    public String toJson() {
+        JsonNode root = new JsonNode();
+        HashSet<String> names = new HashSet<String>();
+        for (Index index : indexes.values()) {
+            root.children.put("/oak:index/" + index.getName(names), index.toJson());
+        }
+        StringBuilder buff = new StringBuilder();
+        root.appendTo(buff, 0);
+        return buff.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /**
+     * Get the key of a property within an index rule: the name after the
+     * last '/' and ':', made unique with a suffix.
+     *
+     * @param name the property name
+     * @param used the keys that are already used
+     * @return the key
+     */
+    static String getPropertyKey(String name, HashSet<String> used) {
+        String key = name.substring(name.lastIndexOf('/') + 1);
+        key = key.substring(key.lastIndexOf(':') + 1);
+        return getUniqueKey(key, used);
+    }
+
+    private static String getUniqueKey(String key, HashSet<String> used) {
+        String k = key;
+        for (int i = 1; !used.add(k); i++) {
+            k = key + "_" + i;
+        }
+        return k;
+    }
+
+    private static boolean isDate(String value) {
+        if (value.length() < 10) {
+            return false;
+        }
+        for (int i = 0; i < 10; i++) {
+            char c = value.charAt(i);
+            if (i == 4 || i == 7 ? c != '-' : c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The merged filters for one node type and path.
+     */
+    private static class Index {
+
+        private final String nodeType;
+        private final String path;
+        private final LinkedHashSet<String> tags = new LinkedHashSet<String>();
+        private boolean untagged;
+        private boolean fulltext;
+        private boolean facets;
+        // the properties, by name (functions have the prefix "function:")
+        private final LinkedHashMap<String, Property> properties =
+                new LinkedHashMap<String, Property>();
+
+        Index(String nodeType, String path) {
+            this.nodeType = nodeType;
+            this.path = path;
+        }
+
+        void add(QueryFilter f) {
+            if (f.getIndexTag() != null) {
+                tags.add(f.getIndexTag());
+            } else {
+                untagged = true;
+            }
+            fulltext |= f.isFulltextSearchable();
+            for (QueryFilter.PropertyRestriction r : f.getPropertyRestrictions()) {
+                Property p = getProperty(r.getName(), r.isFunction());
+                if (p == null) {
+                    continue;
+                }
+                if (QueryFilter.CONTAINS.equals(r.getOperator())) {
+                    p.analyzed = true;
+                } else {
+                    p.propertyIndex = true;
+                }
+                if ("is null".equals(r.getOperator())) {
+                    p.nullCheck = true;
+                } else if ("is not null".equals(r.getOperator())) {
+                    p.notNullCheck = true;
+                }
+                if (p.type == null) {
+                    p.type = getType(p, r);
+                }
+            }
+            for (QueryFilter.SortProperty s : f.getSortOrder()) {
+                Property p = getProperty(s.getName(), s.isFunction());
+                if (p != null) {
+                    p.propertyIndex = true;
+                    p.ordered = true;
+                }
+            }
+            for (String facet : f.getFacets()) {
+                Property p = getProperty(facet, false);
+                p.propertyIndex = true;
+                p.facet = true;
+                facets = true;
+            }
+        }
+
+        /**
+         * Get or create the property definition.
+         *
+         * @param name the property name or function
+         * @param function whether this is a function
+         * @return the property, or null if no definition is needed
+         */
+        private Property getProperty(String name, boolean function) {
+            if (QueryConstants.JCR_PATH.equals(name) || ":path".equals(name) ||
+                    ":score".equals(name)) {
+                // path restrictions are evaluated by the index itself
+                return null;
+            }
+            String key = function ? "function:" + name : name;
+            Property p = properties.get(key);
+            if (p == null) {
+                p = new Property(name, function);
+                properties.put(key, p);
+            }
+            return p;
+        }
+
+        private static String getType(Property p, QueryFilter.PropertyRestriction r) {
+            String type = r.getType();
+            if ("String".equals(type)) {
+                String value = r.getValues().get(0);
+                if (isDate(value)) {
+                    return "Date";
+                }
+                String n = p.name;
+                if (!p.function && (n.contains("created") || n.contains("modified") ||
+                        n.contains("Date") || n.contains("Time"))) {
+                    return "Date";
+                }
+                return null;
+            }
+            return type;
+        }
+
+        String getName(HashSet<String> used) {
+            String base = nodeType.replace(":", "").replace("-", "") + "Lucene";
+            String name = base;
+            for (int i = 2; !used.add(name); i++) {
+                name = base + i;
+            }
+            return name + "-12-custom-1";
+        }
+
+        JsonNode toJson() {
+            JsonNode index = new JsonNode();
+            index.setString("jcr:primaryType", "oak:QueryIndexDefinition");
+            index.setString("type", "lucene");
+            index.setStrings("async", "async", "nrt");
+            index.set("compatVersion", "2");
+            index.set("evaluatePathRestrictions", "true");
+            if (!tags.isEmpty()) {
+                index.setStrings("tags", tags.toArray(new String[0]));
+                if (!untagged) {
+                    index.setString("selectionPolicy", "tag");
+                }
+            }
+            if (path != null) {
+                index.setStrings("includedPaths", path);
+                index.setStrings("queryPaths", path);
+            }
+            if (facets) {
+                JsonNode f = index.addChild("facets");
+                f.setString("jcr:primaryType", "nam:nt:unstructured");
+                f.setString("topChildren", "100");
+                f.setString("secure", "insecure");
+            }
+            JsonNode rules = index.addChild("indexRules");
+            rules.setString("jcr:primaryType", "nt:unstructured");
+            JsonNode rule = rules.addChild(nodeType);
+            rule.setString("jcr:primaryType", "nt:unstructured");
+            JsonNode props = rule.addChild("properties");
+            props.setString("jcr:primaryType", "nt:unstructured");
+            HashSet<String> used = new HashSet<String>();
+            if (fulltext) {
+                rule.setStrings("includePropertyTypes", "String");
+                JsonNode all = props.addChild(getUniqueKey("allStrings", used));
+                all.setString("jcr:primaryType", "nt:unstructured");
+                all.set("isRegex", "true");
+                all.setString("name", ".*");
+                all.set("nodeScopeIndex", "true");
+            }
+            for (Property p : properties.values()) {
+                String key;
+                if (p.function) {
+                    int open = p.name.indexOf('(');
+                    key = getUniqueKey(open < 0 ? p.name : p.name.substring(0, open), used);
+                } else {
+                    key = getPropertyKey(p.name, used);
+                }
+                props.children.put(key, p.toJson());
+            }
+            if (properties.isEmpty() && !fulltext) {
+                // for queries that only restrict the node type
+                JsonNode p = props.addChild(getPropertyKey("jcr:primaryType", used));
+                p.setString("jcr:primaryType", "nt:unstructured");
+                p.setString("name", "jcr:primaryType");
+                p.set("propertyIndex", "true");
+            }
+            return index;
+        }
+
+    }
+
+    /**
+     * A property definition within an index rule.
+     */
+    private static class Property {
+
+        final String name;
+        final boolean function;
+        boolean propertyIndex, analyzed, ordered, facet;
+        boolean nullCheck, notNullCheck;
+        String type;
+
+        Property(String name, boolean function) {
+            this.name = name;
+            this.function = function;
+        }
+
+        JsonNode toJson() {
+            JsonNode p = new JsonNode();
+            p.setString("jcr:primaryType", "nt:unstructured");
+            if (function) {
+                p.setString("function", name);
+            } else if (":name".equals(name) || ":localname".equals(name)) {
+                p.setString("name", ":nodeName");
+            } else {
+                p.setString("name", "str:" + name);
+            }
+            if (propertyIndex) {
+                p.set("propertyIndex", "true");
+            }
+            if (analyzed) {
+                p.set("analyzed", "true");
+            }
+            if (ordered) {
+                p.set("ordered", "true");
+            }
+            if (facet) {
+                p.set("facets", "true");
+            }
+            if (nullCheck) {
+                p.set("nullCheckEnabled", "true");
+            }
+            if (notNullCheck) {
+                p.set("notNullCheckEnabled", "true");
+            }
+            if (type != null) {
+                p.setString("type", type);
+            }
+            return p;
+        }
+
+    }
+
+    /**
+     * A JSON object. The values are JSON encoded.
+     */
+    private static class JsonNode {
+
+        final TreeMap<String, String> properties = new TreeMap<String, String>();
+        final LinkedHashMap<String, JsonNode> children = new LinkedHashMap<String, JsonNode>();
+
+        void set(String key, String json) {
+            properties.put(key, json);
+        }
+
+        void setString(String key, String value) {
+            set(key, quote(value));
+        }
+
+        void setStrings(String key, String... values) {
+            StringBuilder buff = new StringBuilder("[ ");
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    buff.append(", ");
+                }
+                buff.append(quote(values[i]));
+            }
+            set(key, buff.append(" ]").toString());
+        }
+
+        JsonNode addChild(String key) {
+            JsonNode n = new JsonNode();
+            children.put(key, n);
+            return n;
+        }
+
+        void appendTo(StringBuilder buff, int level) {
+            if (properties.isEmpty() && children.isEmpty()) {
+                buff.append("{}");
+                return;
+            }
+            buff.append("{\n");
+            boolean first = true;
+            for (Map.Entry<String, String> e : properties.entrySet()) {
+                first = appendKey(buff, level, e.getKey(), first);
+                buff.append(e.getValue());
+            }
+            for (Map.Entry<String, JsonNode> e : children.entrySet()) {
+                first = appendKey(buff, level, e.getKey(), first);
+                e.getValue().appendTo(buff, level + 1);
+            }
+            buff.append('\n');
+            indent(buff, level);
+            buff.append('}');
+        }
+
+        private static boolean appendKey(StringBuilder buff, int level, String key, boolean first) {
+            if (!first) {
+                buff.append(",\n");
+            }
+            indent(buff, level + 1);
+            buff.append(quote(key)).append(": ");
+            return false;
+        }
+
+        private static void indent(StringBuilder buff, int level) {
+            for (int i = 0; i < level; i++) {
+                buff.append("    ");
+            }
+        }
+
+        static String quote(String s) {
+            StringBuilder buff = new StringBuilder(s.length() + 2);
+            buff.append('\"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                case '\"':
+                    buff.append("\\\"");
+                    break;
+                case '\\':
+                    buff.append("\\\\");
+                    break;
+                case '\n':
+                    buff.append("\\n");
+                    break;
+                case '\r':
+                    buff.append("\\r");
+                    break;
+                case '\t':
+                    buff.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        buff.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buff.append(c);
+                    }
+                }
+            }
+            return buff.append('\"').toString();
+        }
+
+    }
+
+}
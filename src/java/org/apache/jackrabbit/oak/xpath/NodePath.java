@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+/**
+ * An immutable path, stored as a chain of segments: each path has a
+ * reference to its parent and the name of the last segment. This allows to
+ * build a path one segment at a time without creating intermediate strings:
+ * a child shares all segments with its parent, and the string is only
+ * created when needed (and then cached). The depth and hash code are
+ * computed when the path is created.
+ * <p>
+ * The syntax is the same as in {@link PathUtils}: absolute paths start with
+ * a slash, the root path is "/", and the empty path is relative.
+ */
+public final class NodePath implements Comparable<NodePath> {
+
+    /**
+     * The root path ("/").
+     */
+    public static final NodePath ROOT = new NodePath(null, PathUtils.ROOT_NAME, true);
+
+    /**
+     * The empty (relative) path.
+     */
+    public static final NodePath EMPTY = new NodePath(null, PathUtils.ROOT_NAME, false);
+
+    private final NodePath parent;
+    private final String name;
+    private final boolean absolute;
+    private final int depth;
+    private final int hash;
+
+    // The string representation, created when needed
+    private String string;
+
+    private NodePath(NodePath parent, String name, boolean absolute) {
+        this.parent = parent;
+        this.name = name;
+        this.absolute = absolute;
+        if (parent == null) {
+            depth = 0;
+            hash = absolute ? 1 : 0;
+        } else {
+            depth = parent.depth + 1;
+            hash = 31 * parent.hash + name.hashCode();
+        }
+    }
+
+    /**
+     * Parse a path.
+     *
+     * @param path the path
+     * @return the path object
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public static NodePath of(String path) {
+        if (!PathUtils.isValid(path)) {
+            throw new IllegalArgumentException("Invalid path [" + path + "]");
+        }
+        if (path.isEmpty()) {
+            return EMPTY;
+        } else if (PathUtils.ROOT_PATH.equals(path)) {
+            return ROOT;
+        }
+        boolean absolute = PathUtils.isAbsolute(path);
+        NodePath p = absolute ? ROOT : EMPTY;
+        p = p.append(path, absolute ? 1 : 0);
+        p.string = path;
+        return p;
+    }
+
+    /**
+     * Append the segments of a relative path, without validation.
+     *
+     * @param relativePath the relative path
+     * @param start the index of the first segment in the string
+     * @return the new path
+     */
+    private NodePath append(String relativePath, int start) {
+        NodePath p = this;
+        while (true) {
+            int end = relativePath.indexOf('/', start);
+            if (end < 0) {
+                return new NodePath(p, relativePath.substring(start), absolute);
+            }
+            p = new NodePath(p, relativePath.substring(start, end), absolute);
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Concatenate a relative path (usually a single name).
+     *
+     * @param relativePath the relative path
+     * @return the concatenated path (the same instance if the relative path
+     *         is empty)
+     * @throws IllegalArgumentException if the path is absolute
+     */
+    public NodePath concat(String relativePath) {
+        assert PathUtils.isValid(relativePath) : "Invalid sub path [" + relativePath + "]";
+        if (relativePath.isEmpty()) {
+            return this;
+        } else if (relativePath.charAt(0) == '/') {
+            throw new IllegalArgumentException("Cannot append absolute path " + relativePath);
+        }
+        return append(relativePath, 0);
+    }
+
+    /**
+     * Concatenate a relative path. This path is shared, and only the
+     * segments of the relative path are added.
+     *
+     * @param relativePath the relative path
+     * @return the concatenated path (the same instance if the relative path
+     *         is empty)
+     * @throws IllegalArgumentException if the path is absolute
+     */
+    public NodePath concat(NodePath relativePath) {
+        if (relativePath.absolute) {
+            throw new IllegalArgumentException("Cannot append absolute path " + relativePath);
+        } else if (relativePath.depth == 0) {
+            return this;
+        } else if (depth == 0 && !absolute) {
+            return relativePath;
+        }
+        NodePath p = this;
+        for (String n : relativePath.getNames()) {
+            p = p.child(n);
+        }
+        return p;
+    }
+
+    private NodePath child(String name) {
+        return new NodePath(this, name, absolute);
+    }
+
+    /**
+     * Get the parent path.
+     *
+     * @return the parent, or null for the root and the empty path
+     */
+    public NodePath getParent() {
+        return parent;
+    }
+
+    /**
+     * Get the name of the last segment.
+     *
+     * @return the name, or an empty string for the root and the empty path
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the number of segments.
+     *
+     * @return the depth (0 for the root and the empty path)
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    public boolean isRoot() {
+        return absolute && depth == 0;
+    }
+
+    /**
+     * Whether this is the empty (relative) path.
+     *
+     * @return true if yes
+     */
+    public boolean isEmpty() {
+        return !absolute && depth == 0;
+    }
+
+    /**
+     * Get the ancestor at the given depth.
+     *
+     * @param ancestorDepth the depth, at most the depth of this path
+     * @return the ancestor (this path if the depth is the same)
+     */
+    public NodePath getAncestor(int ancestorDepth) {
+        if (ancestorDepth < 0 || ancestorDepth > depth) {
+            throw new IllegalArgumentException("Invalid depth " + ancestorDepth +
+                    " for " + this);
+        }
+        NodePath p = this;
+        for (int i = depth; i > ancestorDepth; i--) {
+            p = p.parent;
+        }
+        return p;
+    }
+
+    /**
+     * Whether this path is an ancestor of the given path. A path is not an
+     * ancestor of itself.
+     *
+     * @param other the other path
+     * @return true if yes
+     */
+    public boolean isAncestorOf(NodePath other) {
+        return other.depth > depth && other.absolute == absolute &&
+                equals(other.getAncestor(depth));
+    }
+
+    /**
+     * Get the path of a descendant relative to this path.
+     *
+     * @param descendant the descendant, or this path
+     * @return the relative path (the empty path if they are the same)
+     * @throws IllegalArgumentException if the path is not a descendant
+     */
+    public NodePath relativize(NodePath descendant) {
+        if (equals(descendant)) {
+            return EMPTY;
+        } else if (!isAncestorOf(descendant)) {
+            throw new IllegalArgumentException(descendant + " is not a descendant of " + this);
+        }
+        NodePath p = EMPTY;
+        String[] names = descendant.getNames();
+        for (int i = depth; i < names.length; i++) {
+            p = p.child(names[i]);
+        }
+        return p;
+    }
+
+    /**
+     * Get the names of all segments.
+     *
+     * @return the names, starting with the first segment
+     */
+    public String[] getNames() {
+        String[] names = new String[depth];
+        NodePath p = this;
+        for (int i = depth - 1; i >= 0; i--) {
+            names[i] = p.name;
+            p = p.parent;
+        }
+        return names;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof NodePath)) {
+            return false;
+        }
+        NodePath a = this, b = (NodePath) obj;
+        if (a.hash != b.hash || a.depth != b.depth || a.absolute != b.absolute) {
+            return false;
+        }
+        // stop at the first common ancestor instance
+        while (a != b) {
+            if (!a.name.equals(b.name)) {
+                return false;
+            }
+            a = a.parent;
+            b = b.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Compare the paths segment by segment. Relative paths are sorted before
+     * absolute paths, and ancestors before descendants.
+     */
+    @Override
+    public int compareTo(NodePath other) {
+        if (absolute != other.absolute) {
+            return absolute ? 1 : -1;
+        }
+        NodePath a = this, b = other;
+        int d = Integer.compare(a.depth, b.depth);
+        if (a.depth > b.depth) {
+            a = a.getAncestor(b.depth);
+        } else if (b.depth > a.depth) {
+            b = b.getAncestor(a.depth);
+        }
+        int comp = compareSameDepth(a, b);
+        return comp != 0 ? comp : d;
+    }
+
+    private static int compareSameDepth(NodePath a, NodePath b) {
+        // the last difference is the one closest to the root
+        int comp = 0;
+        while (a != b) {
+            int c = a.name.compareTo(b.name);
+            if (c != 0) {
+                comp = c;
+            }
+            a = a.parent;
+            b = b.parent;
+        }
+        return comp;
+    }
+
+    @Override
+    public String toString() {
+        String s = string;
+        if (s == null) {
+            if (depth == 0) {
+                s = absolute ? PathUtils.ROOT_PATH : "";
+            } else {
+                int length = absolute ? depth : depth - 1;
+                for (NodePath p = this; p.depth > 0; p = p.parent) {
+                    length += p.name.length();
+                }
+                char[] chars = new char[length];
+                int pos = length;
+                for (NodePath p = this; p.depth > 0; p = p.parent) {
+                    pos -= p.name.length();
+                    p.name.getChars(0, p.name.length(), chars, pos);
+                    if (pos > 0) {
+                        chars[--pos] = '/';
+                    }
+                }
+                s = new String(chars);
+            }
+            string = s;
+        }
+        return s;
+    }
+
+}
@@ -19,14 +19,36 @@ package org.apache.jackrabbit.oak.xpath;
 /**
  * An order by expression.
  */
-class Order {
+public class Order {
 
     boolean descending;
     Expression expr;
 
+    public Expression getExpression() {
+        return expr;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Append the SQL2 representation of this order by expression.
+     *
+     * @param buff the target buffer
+     */
+    void appendTo(StringBuilder buff) {
+        expr.appendTo(buff);
+        if (descending) {
+            buff.append(" desc");
+        }
+    }
+
     @Override
     public String toString() {
-        return expr + (descending ? " desc" : "");
+        StringBuilder buff = new StringBuilder();
+        appendTo(buff);
+        return buff.toString();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A prepared XPath query. The query is parsed once, and the string and
+ * number literals are replaced with slots. The SQL2 query for other literal
+ * values can then be rendered without parsing the query again.
+ * <p>
+ * For example, the query "//*[@jcr:title = 'x'] option(limit 10)" has two
+ * parameters: 'x' and 10. Parameters are numbered in the order they appear
+ * in the XPath query.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class PreparedQuery {
+
+    // Slot markers, as rendered by the converter in prepare mode. The
+    // characters are not allowed in queries that are prepared.
+    static final char MARKER = '\uFFFF';
+    static final char NAME_MARKER = '\uFFFE';
+
+    // Slot types
+    static final char STRING = 'S', NUMBER = 'N', LONG = 'L', INT = 'I', NAME = 'A',
+            NODE_TYPE = 'T';
+
+    /**
+     * The shape of the query (the query text, where literals are replaced
+     * with placeholders).
+     */
+    private final Shape shape;
+
+    /**
+     * The fragments of the SQL2 query, or null if the query could not be
+     * converted to a template. There is one more fragment than slots.
+     */
+    private final String[] fragments;
+
+    private final int[] slots;
+    private final char[] types;
+
+    /**
+     * The left hand side and operator of name conditions (for slots of type
+     * NAME), or null.
+     */
+    private final String[] nameLeft, nameOperator;
+
+    private PreparedQuery(Shape shape, String[] fragments, int[] slots,
+            char[] types, String[] nameLeft, String[] nameOperator) {
+        this.shape = shape;
+        this.fragments = fragments;
+        this.slots = slots;
+        this.types = types;
+        this.nameLeft = nameLeft;
+        this.nameOperator = nameOperator;
+    }
+
+    /**
+     * Prepare a query, and write the SQL2 query for the given parameter
+     * values (or for the values of the query itself, if there are none).
+     * Errors are written as "Error: ...".
+     *
+     * @param args the XPath query, followed by the values
+     */
+    public static void main(String... args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java " + PreparedQuery.class.getName() +
+                    " <query> [<value>...]");
+            System.exit(1);
+            return;
+        }
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        try {
+            PreparedQuery p = prepare(args[0]);
+            out.println(args.length == 1 ? p.bind(p.getParameters().toArray(new String[0])) :
+                    p.bind(Arrays.copyOfRange(args, 1, args.length)));
+        } catch (ParseException | IllegalArgumentException e) {
+            String message = String.valueOf(e.getMessage());
+            out.println(QueryLogConverter.ERROR_PREFIX + message.replace('\r', ' ').replace('\n', ' '));
+        }
+        out.flush();
+    }
+
+    /**
+     * Parse and prepare a query.
+     *
+     * @param query the XPath query
+     * @return the prepared query
+     * @throws ParseException if parsing fails
+     */
+    public static PreparedQuery prepare(String query) throws ParseException {
+        return XPathToSQL2Converter.getConverter().prepare(query);
+    }
+
+    /**
+     * Get the shape of a query, which is the query where literals are
+     * replaced with placeholders. Only the tokenizer is used.
+     *
+     * @param query the XPath query
+     * @return the shape
+     * @throws ParseException if tokenizing fails
+     */
+    static Shape getShape(String query) throws ParseException {
+        return XPathToSQL2Converter.getConverter().readShape(query);
+    }
+
+    /**
+     * Create a prepared query from the SQL2 query, as rendered in prepare
+     * mode.
+     *
+     * @param shape the shape
+     * @param sql2 the rendered query with slot markers, or null if the query
+     *            can not be prepared
+     * @return the prepared query
+     */
+    static PreparedQuery create(Shape shape, String sql2) {
+        if (sql2 == null) {
+            return new PreparedQuery(shape, null, null, null, null, null);
+        }
+        ArrayList<String> fragments = new ArrayList<String>();
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        StringBuilder types = new StringBuilder();
+        ArrayList<String> nameLeft = new ArrayList<String>();
+        ArrayList<String> nameOperator = new ArrayList<String>();
+        StringBuilder buff = new StringBuilder();
+        int len = sql2.length();
+        for (int i = 0; i < len; i++) {
+            char c = sql2.charAt(i);
+            if (c == MARKER) {
+                char type = sql2.charAt(++i);
+                int end = sql2.indexOf(MARKER, i);
+                int slot = Integer.parseInt(sql2.substring(i + 1, end));
+                i = end;
+                if (type == STRING) {
+                    // string literals are quoted when rendered
+                    buff.setLength(buff.length() - 1);
+                    i++;
+                }
+                fragments.add(buff.toString());
+                buff.setLength(0);
+                slots.add(slot);
+                types.append(type);
+                nameLeft.add(null);
+                nameOperator.add(null);
+            } else if (c == NAME_MARKER) {
+                int end = sql2.indexOf(NAME_MARKER, i + 1);
+                int slot = Integer.parseInt(sql2.substring(i + 1, end));
+                int end2 = sql2.indexOf(NAME_MARKER, end + 1);
+                int end3 = sql2.indexOf(NAME_MARKER, end2 + 1);
+                fragments.add(buff.toString());
+                buff.setLength(0);
+                slots.add(slot);
+                types.append(NAME);
+                nameLeft.add(sql2.substring(end + 1, end2));
+                nameOperator.add(sql2.substring(end2 + 1, end3));
+                i = end3;
+            } else {
+                buff.append(c);
+            }
+        }
+        fragments.add(buff.toString());
+        int[] s = new int[slots.size()];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = slots.get(i);
+        }
+        return new PreparedQuery(shape,
+                fragments.toArray(new String[0]), s, types.toString().toCharArray(),
+                nameLeft.toArray(new String[0]), nameOperator.toArray(new String[0]));
+    }
+
+    /**
+     * Get the slot marker for a literal.
+     *
+     * @param slot the slot index
+     * @param type the slot type
+     * @return the marker
+     */
+    static String marker(int slot, char type) {
+        return "" + MARKER + type + slot + MARKER;
+    }
+
+    /**
+     * Get the slot marker for a name condition, that is a condition where the
+     * literal is compared against a name.
+     *
+     * @param slot the slot index
+     * @param left the left hand side
+     * @param operator the operator
+     * @return the marker
+     */
+    static String nameMarker(int slot, String left, String operator) {
+        return "" + NAME_MARKER + slot + NAME_MARKER + left +
+                NAME_MARKER + operator + NAME_MARKER;
+    }
+
+    /**
+     * Get the slot index of a literal marker.
+     *
+     * @param raw the raw text of the literal
+     * @return the slot index, or -1 if this is not a marker
+     */
+    static int getSlot(String raw) {
+        if (raw.length() < 3 || raw.charAt(0) != MARKER) {
+            return -1;
+        }
+        return Integer.parseInt(raw.substring(2, raw.length() - 1));
+    }
+
+    /**
+     * Get the number of parameters (literals) of the query.
+     *
+     * @return the number of parameters
+     */
+    public int getParameterCount() {
+        return shape.values.size();
+    }
+
+    /**
+     * Get the literal values of the query that was prepared.
+     *
+     * @return the parameter values
+     */
+    public List<String> getParameters() {
+        return shape.values;
+    }
+
+    /**
+     * Whether the query could be converted to a template. If not, binding
+     * values will convert the query again.
+     *
+     * @return true if this is a template
+     */
+    public boolean isTemplate() {
+        return fragments != null;
+    }
+
+    /**
+     * Get the SQL2 query for the given parameter values. String values are
+     * not escaped (the raw value is used); number values must be valid
+     * numbers, and are written the same way as by the converter.
+     *
+     * @param values the values
+     * @return the SQL2 query
+     * @throws ParseException if a value is invalid, or converting fails
+     */
+    public String bind(String... values) throws ParseException {
+        if (values.length != getParameterCount()) {
+            throw new IllegalArgumentException("Expected " + getParameterCount() +
+                    " parameters, got " + values.length);
+        }
+        List<String> list = Arrays.asList(values);
+        for (int i = 0; i < values.length; i++) {
+            if (shape.types[i] == NUMBER && !isNumber(values[i])) {
+                throw new ParseException("Not a number: " + values[i], i);
+            }
+        }
+        String result = bindOrNull(list);
+        if (result == null) {
+            result = XPathToSQL2Converter.toSQL2(shape.toQuery(list));
+        }
+        return result;
+    }
+
+    /**
+     * Render the SQL2 query with the given values, which were read by the
+     * tokenizer.
+     *
+     * @param values the values
+     * @return the SQL2 query, or null if this is not a template or the values
+     *         can not be used as is (for example, a decimal value for a limit)
+     */
+    String bindOrNull(List<String> values) {
+        if (fragments == null || values.size() != getParameterCount()) {
+            return null;
+        }
+        StringBuilder buff = new StringBuilder(getWeight() + 16 * slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            buff.append(fragments[i]);
+            String v = values.get(slots[i]);
+            switch (types[i]) {
+            case STRING:
+                buff.append(SQL2Parser.escapeStringLiteral(v));
+                break;
+            case NUMBER:
+                appendNumber(buff, v);
+                break;
+            case LONG:
+            case INT:
+                long x;
+                try {
+                    x = Long.parseLong(v);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                buff.append(types[i] == INT ? (int) x : x);
+                break;
+            case NODE_TYPE:
+                if (v.isEmpty() || v.indexOf(']') >= 0) {
+                    // the node type was not pushed down for such values
+                    return null;
+                }
+                buff.append(v);
+                break;
+            case NAME:
+                Expression.Condition.appendNameCondition(buff, nameLeft[i], nameOperator[i], v);
+                break;
+            default:
+                throw new IllegalStateException("Unknown slot type " + types[i]);
+            }
+        }
+        buff.append(fragments[slots.length]);
+        return buff.toString();
+    }
+
+    /**
+     * Get the approximate memory used, in characters.
+     *
+     * @return the weight
+     */
+    int getWeight() {
+        int w = shape.key.length();
+        if (fragments != null) {
+            for (int i = 0; i < fragments.length; i++) {
+                w += fragments[i].length();
+            }
+            for (int i = 0; i < nameLeft.length; i++) {
+                if (nameLeft[i] != null) {
+                    w += nameLeft[i].length();
+                }
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Append a number the same way as the converter: integers up to
+     * Integer.MAX_VALUE without leading zeros, and other numbers as is.
+     *
+     * @param buff the target
+     * @param s the number
+     */
+    static void appendNumber(StringBuilder buff, String s) {
+        long x = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                buff.append(s);
+                return;
+            }
+            x = x * 10 + c - '0';
+            if (x > Integer.MAX_VALUE) {
+                buff.append(s);
+                return;
+            }
+        }
+        buff.append(x);
+    }
+
+    private static boolean isNumber(String s) {
+        int len = s.length(), i = 0, digits = 0;
+        while (i < len && Character.isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < len && s.charAt(i) == '.') {
+            i++;
+            while (i < len && Character.isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < len && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            if (i == len) {
+                return false;
+            }
+            while (i < len && Character.isDigit(s.charAt(i))) {
+                i++;
+            }
+        }
+        return i == len;
+    }
+
+    @Override
+    public String toString() {
+        return shape.toQuery(shape.values);
+    }
+
+    /**
+     * The shape of a query: the query text where literals are replaced with
+     * placeholders, and the literal values.
+     */
+    static class Shape {
+
+        /**
+         * The query text, where each literal is replaced with MARKER (for
+         * strings) or NAME_MARKER (for numbers).
+         */
+        final String key;
+
+        /**
+         * The positions of the placeholders within the key.
+         */
+        final int[] offsets;
+
+        /**
+         * The types (STRING or NUMBER).
+         */
+        final char[] types;
+
+        /**
+         * The literal values, as read by the tokenizer.
+         */
+        final List<String> values;
+
+        Shape(String key, int[] offsets, char[] types, List<String> values) {
+            this.key = key;
+            this.offsets = offsets;
+            this.types = types;
+            this.values = values;
+        }
+
+        /**
+         * Build an XPath query with the given values.
+         *
+         * @param values the values
+         * @return the query
+         */
+        String toQuery(List<String> values) {
+            StringBuilder buff = new StringBuilder(key.length() + 16 * offsets.length);
+            int last = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                buff.append(key, last, offsets[i]);
+                String v = values.get(i);
+                if (types[i] == STRING) {
+                    buff.append(SQL2Parser.escapeStringLiteral(v));
+                } else {
+                    buff.append(v);
+                }
+                last = offsets[i] + 1;
+            }
+            buff.append(key, last, key.length());
+            return buff.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,711 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The restrictions of a query on one selector: the node type, the path and
+ * property restrictions, the sort order, and whether full-text conditions
+ * are used. This is what a query engine uses to pick an index, and what is
+ * needed to generate an index definition for the query.
+ * <p>
+ * Or conditions and negations are not evaluated: all restrictions within
+ * them are extracted, as an index for the query needs to contain those
+ * properties.
+ */
+public class QueryFilter {
+
+    /**
+     * The operator of property restrictions for full-text conditions.
+     */
+    public static final String CONTAINS = "contains";
+
+    private final Selector selector;
+    private final ArrayList<PathRestriction> pathRestrictions = new ArrayList<PathRestriction>();
+    private final ArrayList<PropertyRestriction> propertyRestrictions =
+            new ArrayList<PropertyRestriction>();
+    private final ArrayList<SortProperty> sortOrder = new ArrayList<SortProperty>();
+    private final ArrayList<String> facets = new ArrayList<String>();
+    private boolean fulltextSearchable;
+    private String pathPrefix;
+    private String indexTag;
+
+    private QueryFilter(Selector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Get the filters of a statement. There is one filter per selector, and
+     * for unions, per selector of each statement of the union.
+     *
+     * @param statement the statement
+     * @return the filters
+     */
+    public static List<QueryFilter> of(Statement statement) {
+        ArrayList<QueryFilter> list = new ArrayList<QueryFilter>();
+        // for unions, the order and options are those of the union
+        List<Order> orderList = statement.getOrderList();
+        QueryOptions options = statement.getQueryOptions();
+        for (Statement s : statement.getUnionStatements()) {
+            for (Selector selector : s.getSelectors()) {
+                QueryFilter f = new QueryFilter(selector);
+                f.addCondition(s.getWhere());
+                f.addOrder(statement.isUnion() ? orderList : s.getOrderList());
+                if (selector == s.getColumnSelector()) {
+                    f.addColumns(s.getColumns());
+                }
+                QueryOptions o = statement.isUnion() ? options : s.getQueryOptions();
+                if (o != null) {
+                    f.indexTag = o.indexTag;
+                }
+                list.add(f);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the selector name.
+     *
+     * @return the selector name
+     */
+    public String getSelectorName() {
+        return selector.name;
+    }
+
+    /**
+     * Get the node type.
+     *
+     * @return the node type, "nt:base" if not set
+     */
+    public String getNodeType() {
+        return selector.nodeType == null ? "nt:base" : selector.nodeType;
+    }
+
+    public List<PathRestriction> getPathRestrictions() {
+        return Collections.unmodifiableList(pathRestrictions);
+    }
+
+    /**
+     * Get the path of the last descendant node restriction.
+     *
+     * @return the path, or null
+     */
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    public List<PropertyRestriction> getPropertyRestrictions() {
+        return Collections.unmodifiableList(propertyRestrictions);
+    }
+
+    public List<SortProperty> getSortOrder() {
+        return Collections.unmodifiableList(sortOrder);
+    }
+
+    /**
+     * Get the facets, that is the properties of "rep:facet(...)" columns.
+     *
+     * @return the facets
+     */
+    public List<String> getFacets() {
+        return Collections.unmodifiableList(facets);
+    }
+
+    public boolean isFulltextSearchable() {
+        return fulltextSearchable;
+    }
+
+    /**
+     * Get the index tag option.
+     *
+     * @return the tag, or null
+     */
+    public String getIndexTag() {
+        return indexTag;
+    }
+
+    private void addCondition(Expression e) {
+        if (e instanceof Expression.ListCondition) {
+            // and, or
+            for (Expression x : ((Expression.ListCondition) e).list) {
+                addCondition(x);
+            }
+        } else if (e instanceof Expression.Condition) {
+            addCondition((Expression.Condition) e);
+        } else if (e instanceof Expression.InCondition) {
+            Expression.InCondition in = (Expression.InCondition) e;
+            String name = getPropertyName(in.left);
+            if (name != null && isSelector(getSelector(in.left))) {
+                ArrayList<String> values = new ArrayList<String>();
+                String type = null;
+                for (Expression x : in.list) {
+                    Expression.Literal l = getLiteral(x);
+                    if (l != null) {
+                        values.add(l.rawText);
+                        type = getType(x);
+                    }
+                }
+                if (!values.isEmpty()) {
+                    addPropertyRestriction(name, "in", values, type, false);
+                }
+            }
+        } else if (e instanceof Expression.Contains) {
+            Expression.Contains c = (Expression.Contains) e;
+            if (!(c.left instanceof Expression.Property) ||
+                    !isSelector(((Expression.Property) c.left).selector)) {
+                return;
+            }
+            fulltextSearchable = true;
+            String name = ((Expression.Property) c.left).name;
+            if (!"*".equals(name)) {
+                addPropertyRestriction(name, CONTAINS,
+                        Collections.singletonList(getValue(c.right)), null, false);
+            }
+        } else if (e instanceof Expression.Function) {
+            addFunction((Expression.Function) e);
+        }
+    }
+
+    private void addCondition(Expression.Condition c) {
+        if (!isSelector(getSelector(c.left))) {
+            return;
+        }
+        String op = c.operator;
+        if (c.right == null) {
+            // is [not] null
+            String name = isFunction(c.left) ? formatFunction(c.left) : getPropertyName(c.left);
+            if (name != null) {
+                addPropertyRestriction(name, op, Collections.<String>emptyList(), null,
+                        isFunction(c.left));
+            }
+            return;
+        }
+        Expression.Literal value = getLiteral(c.right);
+        if (value == null) {
+            return;
+        }
+        String type = getType(c.right);
+        if (isFunction(c.left)) {
+            addPropertyRestriction(formatFunction(c.left), op,
+                    Collections.singletonList(value.rawText), type, true);
+            return;
+        }
+        String name = getPropertyName(c.left);
+        if (name == null) {
+            return;
+        }
+        if (QueryConstants.JCR_PATH.equals(name) && "like".equals(op)) {
+            addPathPattern(value.rawText);
+        } else {
+            addPropertyRestriction(name, op,
+                    Collections.singletonList(value.rawText), type, false);
+        }
+    }
+
+    private void addFunction(Expression.Function f) {
+        String name = f.name;
+        if ("not".equals(name)) {
+            addCondition(f.params.get(0));
+            return;
+        }
+        PathRestriction.Type type;
+        if ("isdescendantnode".equals(name)) {
+            type = PathRestriction.Type.PREFIX;
+        } else if ("ischildnode".equals(name)) {
+            type = PathRestriction.Type.CHILDREN;
+        } else if ("issamenode".equals(name)) {
+            type = PathRestriction.Type.EXACT;
+        } else {
+            return;
+        }
+        Expression path;
+        if (f.params.size() == 1) {
+            if (!selector.onlySelector) {
+                return;
+            }
+            path = f.params.get(0);
+        } else {
+            Expression s = f.params.get(0);
+            if (!(s instanceof Expression.SelectorExpr) ||
+                    !selector.name.equals(((Expression.SelectorExpr) s).getSelectorName())) {
+                return;
+            }
+            path = f.params.get(1);
+        }
+        if (!(path instanceof Expression.Literal)) {
+            // a join condition
+            return;
+        }
+        String p = ((Expression.Literal) path).rawText;
+        if (type == PathRestriction.Type.PREFIX) {
+            pathPrefix = p;
+        }
+        pathRestrictions.add(new PathRestriction(type, p));
+    }
+
+    /**
+     * Add a "[jcr:path] like" condition.
+     *
+     * @param pattern the pattern
+     */
+    private void addPathPattern(String pattern) {
+        if (pattern.endsWith("/%")) {
+            String p = pattern.substring(0, pattern.length() - 2);
+            pathPrefix = p;
+            pathRestrictions.add(new PathRestriction(PathRestriction.Type.PREFIX, p));
+        } else if (pattern.indexOf('%') >= 0 || pattern.indexOf('_') >= 0) {
+            pathRestrictions.add(new PathRestriction(PathRestriction.Type.GLOB, pattern));
+        } else {
+            pathRestrictions.add(new PathRestriction(PathRestriction.Type.EXACT, pattern));
+        }
+    }
+
+    private void addPropertyRestriction(String name, String operator,
+            List<String> values, String type, boolean function) {
+        propertyRestrictions.add(new PropertyRestriction(name, operator, values, type, function));
+    }
+
+    private void addOrder(List<Order> list) {
+        for (Order o : list) {
+            Expression e = o.expr;
+            while (e instanceof Expression.Cast) {
+                e = ((Expression.Cast) e).expr;
+            }
+            String name;
+            boolean function = false;
+            if (e instanceof Expression.Property) {
+                name = ((Expression.Property) e).name;
+            } else if (e instanceof Expression.Function) {
+                String special = getSpecialName((Expression.Function) e);
+                if (special != null) {
+                    name = special;
+                } else {
+                    name = formatFunction(e);
+                    function = true;
+                }
+            } else {
+                continue;
+            }
+            sortOrder.add(new SortProperty(name, o.descending, function));
+        }
+    }
+
+    private void addColumns(List<Expression> columns) {
+        String prefix = QueryConstants.REP_FACET + "(";
+        for (Expression e : columns) {
+            if (!(e instanceof Expression.Property)) {
+                continue;
+            }
+            String name = ((Expression.Property) e).name;
+            if (name.startsWith(prefix) && name.endsWith(")")) {
+                String facet = name.substring(prefix.length(), name.length() - 1).trim();
+                if (facet.startsWith("[") && facet.endsWith("]")) {
+                    facet = facet.substring(1, facet.length() - 1);
+                }
+                if (!facet.isEmpty() && !facets.contains(facet)) {
+                    facets.add(facet);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a selector is the selector of this filter. Selectors are
+     * compared by name, as the statements of a union share the conditions
+     * but each have their own copy of the selectors.
+     *
+     * @param s the selector (may be null)
+     * @return true if yes
+     */
+    private boolean isSelector(Selector s) {
+        return s != null && selector.name.equals(s.name);
+    }
+
+    /**
+     * Get the selector of an operand.
+     *
+     * @param e the operand
+     * @return the selector, or null if unknown
+     */
+    private Selector getSelector(Expression e) {
+        if (e instanceof Expression.Property) {
+            return ((Expression.Property) e).selector;
+        } else if (e instanceof Expression.Cast) {
+            return getSelector(((Expression.Cast) e).expr);
+        } else if (e instanceof Expression.Function) {
+            for (Expression x : ((Expression.Function) e).params) {
+                if (x instanceof Expression.SelectorExpr) {
+                    String name = ((Expression.SelectorExpr) x).getSelectorName();
+                    return selector.name.equals(name) ? selector : null;
+                }
+                Selector s = getSelector(x);
+                if (s != null) {
+                    return s;
+                }
+            }
+            if (selector.onlySelector) {
+                // for example "name()"
+                return selector;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the property name of an operand. For functions, this is the
+     * special name (for example ":name"), or the property of the first
+     * parameter.
+     *
+     * @param e the operand
+     * @return the name, or null
+     */
+    private static String getPropertyName(Expression e) {
+        if (e instanceof Expression.Property) {
+            return ((Expression.Property) e).name;
+        } else if (e instanceof Expression.Cast) {
+            return getPropertyName(((Expression.Cast) e).expr);
+        } else if (e instanceof Expression.Function) {
+            Expression.Function f = (Expression.Function) e;
+            String special = getSpecialName(f);
+            if (special != null) {
+                return special;
+            }
+            if (!f.params.isEmpty()) {
+                return getPropertyName(f.params.get(0));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the name of functions that don't have a property parameter, such
+     * as "path(a)".
+     *
+     * @param f the function
+     * @return the name (for example ":path"), or null
+     */
+    private static String getSpecialName(Expression.Function f) {
+        switch (f.name) {
+        case "path":
+        case "name":
+        case "localname":
+        case "score":
+            return ":" + f.name;
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isFunction(Expression e) {
+        return e instanceof Expression.Function &&
+                getSpecialName((Expression.Function) e) == null;
+    }
+
+    /**
+     * Format a function, as used in function-based index definitions. The
+     * selector names are not included.
+     *
+     * @param e the expression
+     * @return the formatted function
+     */
+    private static String formatFunction(Expression e) {
+        StringBuilder buff = new StringBuilder();
+        appendFunction(buff, e);
+        return buff.toString();
+    }
+
+    private static void appendFunction(StringBuilder buff, Expression e) {
+        if (e instanceof Expression.Property) {
+            buff.append('[').append(((Expression.Property) e).name).append(']');
+        } else if (e instanceof Expression.Function) {
+            Expression.Function f = (Expression.Function) e;
+            buff.append(f.name).append('(');
+            if (getSpecialName(f) == null) {
+                for (int i = 0; i < f.params.size(); i++) {
+                    if (i > 0) {
+                        buff.append(", ");
+                    }
+                    appendFunction(buff, f.params.get(i));
+                }
+            }
+            buff.append(')');
+        } else {
+            e.appendTo(buff);
+        }
+    }
+
+    private static String getValue(Expression e) {
+        return e instanceof Expression.Literal ? ((Expression.Literal) e).rawText : e.toString();
+    }
+
+    /**
+     * Get the literal of a value, which may be cast (for example
+     * "cast('2020-01-01T00:00:00.000Z' as date)").
+     *
+     * @param e the value
+     * @return the literal, or null if the value is not a literal
+     */
+    private static Expression.Literal getLiteral(Expression e) {
+        while (e instanceof Expression.Cast) {
+            e = ((Expression.Cast) e).expr;
+        }
+        return e instanceof Expression.Literal ? (Expression.Literal) e : null;
+    }
+
+    /**
+     * Get the type of a value. For a cast, this is the target type of the
+     * (outermost) cast, otherwise the type of the literal.
+     *
+     * @param e the value (a literal, or a cast of a literal)
+     * @return the property type, or null if unknown
+     */
+    private static String getType(Expression e) {
+        if (!(e instanceof Expression.Cast)) {
+            return getType((Expression.Literal) e);
+        }
+        String type = ((Expression.Cast) e).type;
+        switch (type) {
+        case "weakreference":
+            return "WeakReference";
+        case "uri":
+            return "URI";
+        default:
+            return Character.toUpperCase(type.charAt(0)) + type.substring(1);
+        }
+    }
+
+    /**
+     * Get the type of a literal.
+     *
+     * @param l the literal
+     * @return "String", "Long", "Double", "Boolean", or null for bind
+     *         variables
+     */
+    private static String getType(Expression.Literal l) {
+        String v = l.value;
+        if (v.startsWith("'")) {
+            return "String";
+        } else if (v.startsWith("@")) {
+            return null;
+        } else if ("true".equals(v) || "false".equals(v)) {
+            return "Boolean";
+        }
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                return "Double";
+            }
+        }
+        return "Long";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        buff.append("selector ").append(selector.name).append(" type ").append(getNodeType());
+        for (PathRestriction p : pathRestrictions) {
+            buff.append(' ').append(p);
+        }
+        for (PropertyRestriction p : propertyRestrictions) {
+            buff.append(' ').append(p);
+        }
+        if (fulltextSearchable) {
+            buff.append(" fulltext");
+        }
+        for (SortProperty s : sortOrder) {
+            buff.append(" order by ").append(s);
+        }
+        for (String f : facets) {
+            buff.append(" facet ").append(f);
+        }
+        if (indexTag != null) {
+            buff.append(" tag ").append(indexTag);
+        }
+        return buff.toString();
+    }
+
+    /**
+     * A restriction on the path.
+     */
+    public static class PathRestriction {
+
+        /**
+         * The type of path restriction.
+         */
+        public enum Type {
+            // descendants of the path
+            PREFIX,
+            // children of the path
+            CHILDREN,
+            // the path itself
+            EXACT,
+            // a "like" pattern
+            GLOB
+        }
+
+        private final Type type;
+        private final String path;
+
+        PathRestriction(Type type, String path) {
+            this.type = type;
+            this.path = path;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Get the path, or the pattern for GLOB restrictions.
+         *
+         * @return the path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the path as a path object, for example to check whether it is
+         * an ancestor of another path.
+         *
+         * @return the path, or null for GLOB restrictions and invalid paths
+         */
+        public NodePath toPath() {
+            return type == Type.GLOB || !PathUtils.isValid(path) ? null : NodePath.of(path);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path;
+        }
+
+    }
+
+    /**
+     * A restriction on a property, or on a function of a property.
+     */
+    public static class PropertyRestriction {
+
+        private final String name;
+        private final String operator;
+        private final List<String> values;
+        private final String type;
+        private final boolean function;
+
+        PropertyRestriction(String name, String operator, List<String> values,
+                String type, boolean function) {
+            this.name = name;
+            this.operator = operator;
+            this.values = values;
+            this.type = type;
+            this.function = function;
+        }
+
+        /**
+         * Get the property name, or the function for function restrictions
+         * (for example "lower([jcr:title])").
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the operator, for example "=", "like", "in", "is not null", or
+         * "contains".
+         *
+         * @return the operator
+         */
+        public String getOperator() {
+            return operator;
+        }
+
+        /**
+         * Get the values, as they appeared in the query.
+         *
+         * @return the values (empty for "is null" and "is not null")
+         */
+        public List<String> getValues() {
+            return values;
+        }
+
+        /**
+         * Get the type of the value.
+         *
+         * @return "String", "Long", "Double", "Boolean", the target type of
+         *         a cast (for example "Date"), or null if unknown
+         */
+        public String getType() {
+            return type;
+        }
+
+        public boolean isFunction() {
+            return function;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + operator + (values.isEmpty() ? "" : " " + values);
+        }
+
+    }
+
+    /**
+     * A sort property.
+     */
+    public static class SortProperty {
+
+        private final String name;
+        private final boolean descending;
+        private final boolean function;
+
+        SortProperty(String name, boolean descending, boolean function) {
+            this.name = name;
+            this.descending = descending;
+            this.function = function;
+        }
+
+        /**
+         * Get the property name, or the function.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDescending() {
+            return descending;
+        }
+
+        public boolean isFunction() {
+            return function;
+        }
+
+        @Override
+        public String toString() {
+            return name + (descending ? " desc" : "");
+        }
+
+    }
+
+}
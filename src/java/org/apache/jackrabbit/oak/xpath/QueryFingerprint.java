@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.text.ParseException;
+
+/**
+ * A fingerprint of the shape of a query: a 64-bit hash of the tokens,
+ * where the values of string and number literals are ignored. Queries that
+ * only differ in literal values, white space, or comments (and for SQL2, in
+ * the case of keywords and function names) have the same fingerprint. Lists of literals, as in
+ * "in(1, 2, 3)", count as one literal, so the length of such lists is
+ * ignored as well, and so is the sign of numbers.
+ * <p>
+ * For example, "//*[@x = 1] option(limit 10)" and
+ * "//*[@x = -20] option(limit 100)" have the same fingerprint.
+ * <p>
+ * The fingerprint is calculated while tokenizing the query; the query is
+ * not parsed, and no objects are created. That means invalid queries may
+ * have a fingerprint as well. XPath and SQL2 queries never have the same
+ * fingerprint.
+ */
+public class QueryFingerprint {
+
+    private static final long PRIME = 0x100000001b3L;
+    private static final long XPATH = 0xcbf29ce484222325L, SQL2 = 0x84222325cbf29ce4L;
+
+    // Token markers
+    private static final int LITERAL = 0x10000, MINUS = 0x10001, COMMA = 0x10002;
+    private static final int TOKEN = 0x10003;
+
+    private long hash;
+
+    // whether the last token was a literal (or a list of literals)
+    private boolean afterLiteral;
+
+    // tokens that are only added if the next token is not a literal
+    private boolean pendingComma, pendingMinus;
+
+    /**
+     * Get the fingerprint of an XPath query.
+     *
+     * @param query the query
+     * @return the fingerprint
+     * @throws ParseException if tokenizing fails
+     */
+    public static long ofXPath(String query) throws ParseException {
+        return XPathToSQL2Converter.getConverter().fingerprint(query);
+    }
+
+    /**
+     * Get the fingerprint of a SQL2 query.
+     *
+     * @param query the query
+     * @return the fingerprint
+     * @throws ParseException if tokenizing fails
+     */
+    public static long ofSQL2(String query) throws ParseException {
+        return SQL2Parser.getParser().fingerprint(query);
+    }
+
+    /**
+     * Format a fingerprint as a hex string of 16 characters.
+     *
+     * @param fingerprint the fingerprint
+     * @return the hex string
+     */
+    public static String toString(long fingerprint) {
+        String s = Long.toHexString(fingerprint);
+        return "0000000000000000".substring(s.length()) + s;
+    }
+
+    /**
+     * Start with a new query.
+     *
+     * @param sql2 whether this is a SQL2 query (otherwise XPath)
+     */
+    void reset(boolean sql2) {
+        hash = sql2 ? SQL2 : XPATH;
+        afterLiteral = false;
+        pendingComma = false;
+        pendingMinus = false;
+    }
+
+    /**
+     * Add a string or number literal.
+     */
+    void literal() {
+        // "-1" is a literal
+        pendingMinus = false;
+        if (pendingComma) {
+            // a list of literals
+            pendingComma = false;
+            return;
+        }
+        add(LITERAL);
+        afterLiteral = true;
+    }
+
+    /**
+     * Add a minus sign.
+     */
+    void minus() {
+        flushMinus();
+        pendingMinus = true;
+    }
+
+    /**
+     * Add a comma.
+     */
+    void comma() {
+        flush();
+        if (afterLiteral) {
+            pendingComma = true;
+        } else {
+            add(COMMA);
+        }
+    }
+
+    /**
+     * Add a token. Characters are hashed as they are, or converted to
+     * lowercase (only ASCII characters).
+     *
+     * @param s the query
+     * @param start the start index of the token
+     * @param end the end index of the token
+     * @param type the token type
+     * @param ignoreCase whether to convert to lowercase
+     */
+    void token(String s, int start, int end, int type, boolean ignoreCase) {
+        flush();
+        afterLiteral = false;
+        add(TOKEN + type);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (ignoreCase && c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            add(c);
+        }
+    }
+
+    /**
+     * Get the fingerprint of the tokens that were added.
+     *
+     * @return the fingerprint
+     */
+    long get() {
+        flush();
+        // the finalizer of MurmurHash3, so that all bits depend on all
+        // input bits
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void flush() {
+        if (pendingComma) {
+            pendingComma = false;
+            add(COMMA);
+            afterLiteral = false;
+        }
+        flushMinus();
+    }
+
+    private void flushMinus() {
+        if (pendingMinus) {
+            pendingMinus = false;
+            add(MINUS);
+            afterLiteral = false;
+        }
+    }
+
+    private void add(int x) {
+        // FNV-1a
+        hash = (hash ^ x) * PRIME;
+    }
+
+}
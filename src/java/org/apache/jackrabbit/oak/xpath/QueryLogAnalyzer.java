@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A command line tool that finds the most frequent query shapes, and the
+ * shapes with the highest total time, in a query log. Each line of the log
+ * is an XPath or SQL2 query, optionally preceded by the duration in
+ * milliseconds and a tab character.
+ * <p>
+ * Queries are grouped by their fingerprint (see {@link QueryFingerprint}),
+ * so queries that only differ in literal values are counted together. The
+ * counts are kept in two fixed-size sketches (see {@link HeavyHitters}), so
+ * the memory usage doesn't depend on the size of the log. Files are split
+ * into chunks that are analyzed in parallel, and the sketches of the chunks
+ * are then merged.
+ */
+public class QueryLogAnalyzer {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final HeavyHitters byCount, byTime;
+    private long lineCount;
+    private long errorCount;
+
+    public QueryLogAnalyzer(int capacity) {
+        byCount = new HeavyHitters(capacity);
+        byTime = new HeavyHitters(capacity);
+    }
+
+    public static void main(String... args) throws IOException {
+        String input = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int capacity = 10000;
+        int top = 20;
+        long chunkSize = 0;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("-i".equals(a) && i + 1 < args.length) {
+                input = args[++i];
+            } else if ("-threads".equals(a) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-capacity".equals(a) && i + 1 < args.length) {
+                capacity = Integer.parseInt(args[++i]);
+            } else if ("-top".equals(a) && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if ("-chunkSize".equals(a) && i + 1 < args.length) {
+                chunkSize = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: java " + QueryLogAnalyzer.class.getName() +
+                        " [-i <input file>] [-threads <count>]" +
+                        " [-capacity <shapes>] [-top <count>] [-chunkSize <bytes>]");
+                System.err.println("Reads from stdin by default (using one thread).");
+                System.exit(1);
+                return;
+            }
+        }
+        QueryLogAnalyzer analyzer;
+        if (input == null) {
+            analyzer = new QueryLogAnalyzer(capacity);
+            analyzer.analyze(new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8), BUFFER_SIZE));
+        } else {
+            analyzer = analyze(Paths.get(input), threads, capacity, chunkSize);
+        }
+        analyzer.print(System.out, top);
+    }
+
+    /**
+     * Analyze a file, in parallel.
+     *
+     * @param file the file
+     * @param threads the number of threads
+     * @param capacity the number of query shapes to track, per sketch
+     * @return the merged result
+     * @throws IOException if reading fails
+     */
+    public static QueryLogAnalyzer analyze(Path file, int threads, int capacity) throws IOException {
+        return analyze(file, threads, capacity, 0);
+    }
+
+    /**
+     * Analyze a file, in parallel, using chunks of the given size.
+     *
+     * @param file the file
+     * @param threads the number of threads
+     * @param capacity the number of query shapes to track, per sketch
+     * @param chunkSize the chunk size in bytes, or 0 for a few chunks per
+     *            thread
+     * @return the merged result
+     * @throws IOException if reading fails
+     */
+    public static QueryLogAnalyzer analyze(Path file, int threads, int capacity,
+            long chunkSize) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid threads " + threads);
+        } else if (chunkSize < 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        QueryLogAnalyzer result = new QueryLogAnalyzer(capacity);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (chunkSize == 0) {
+                // a few chunks per thread, so that the work is balanced
+                long n = Math.max(1, Math.min(4 * threads, length / BUFFER_SIZE));
+                chunkSize = Math.max(1, (length + n - 1) / n);
+            }
+            long chunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+            if (chunks > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+            }
+            ArrayList<Future<QueryLogAnalyzer>> list = new ArrayList<Future<QueryLogAnalyzer>>();
+            for (long i = 0; i < chunks; i++) {
+                long start = Math.min(length, i * chunkSize);
+                long end = Math.min(length, start + chunkSize);
+                list.add(pool.submit(() -> {
+                    QueryLogAnalyzer a = new QueryLogAnalyzer(capacity);
+                    a.readChunk(channel, start, end);
+                    return a;
+                }));
+            }
+            for (Future<QueryLogAnalyzer> f : list) {
+                result.merge(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Analyzing failed", cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Analyze all lines of the reader.
+     *
+     * @param in the reader
+     * @throws IOException if reading fails
+     */
+    public void analyze(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            add(line);
+        }
+    }
+
+    /**
+     * Read the lines that start within the given range of the file. The
+     * line that starts before the range and ends within it belongs to the
+     * previous chunk. Lines are split at the byte level, which is safe for
+     * UTF-8.
+     *
+     * @param channel the file
+     * @param start the start position
+     * @param end the end position
+     * @throws IOException if reading fails
+     */
+    void readChunk(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] line = new byte[1024];
+        int len = 0;
+        // the line at the start belongs to this chunk if it follows a newline
+        long pos = start == 0 ? 0 : start - 1;
+        boolean skip = start > 0;
+        while (true) {
+            buff.clear();
+            int n = channel.read(buff, pos);
+            if (n < 0) {
+                break;
+            }
+            byte[] b = buff.array();
+            for (int i = 0; i < n; i++) {
+                byte x = b[i];
+                if (x == '\n') {
+                    if (!skip) {
+                        add(new String(line, 0, len, StandardCharsets.UTF_8));
+                    }
+                    skip = false;
+                    len = 0;
+                    if (pos + i + 1 >= end) {
+                        return;
+                    }
+                } else if (!skip) {
+                    if (len == line.length) {
+                        line = Arrays.copyOf(line, len * 2);
+                    }
+                    line[len++] = x;
+                }
+            }
+            pos += n;
+        }
+        if (!skip && len > 0) {
+            // the last line, without newline
+            add(new String(line, 0, len, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Add a line of the log.
+     *
+     * @param line the query, optionally preceded by the duration in
+     *            milliseconds and a tab
+     */
+    public void add(String line) {
+        long time = 0;
+        int tab = line.indexOf('\t');
+        if (tab > 0) {
+            try {
+                time = Long.parseLong(line.substring(0, tab).trim());
+                line = line.substring(tab + 1);
+            } catch (NumberFormatException e) {
+                // the tab is part of the query
+            }
+        }
+        String query = line.trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        lineCount++;
+        long fingerprint;
+        try {
+            fingerprint = SQL2Parser.isSQL2(query) ?
+                    QueryFingerprint.ofSQL2(query) : QueryFingerprint.ofXPath(query);
+        } catch (ParseException e) {
+            errorCount++;
+            return;
+        }
+        byCount.add(fingerprint, 1, time, query);
+        byTime.add(fingerprint, time, time, query);
+    }
+
+    /**
+     * Merge the result of another analyzer into this one.
+     *
+     * @param other the other analyzer (not modified)
+     */
+    public void merge(QueryLogAnalyzer other) {
+        byCount.merge(other.byCount);
+        byTime.merge(other.byTime);
+        lineCount += other.lineCount;
+        errorCount += other.errorCount;
+    }
+
+    /**
+     * Get the most frequent query shapes. The weight of the entries is the
+     * number of queries.
+     *
+     * @param n the maximum number of shapes
+     * @return the entries
+     */
+    public List<HeavyHitters.Entry> getTopByCount(int n) {
+        return byCount.getTop(n);
+    }
+
+    /**
+     * Get the query shapes with the highest total time. The weight of the
+     * entries is the total time in milliseconds.
+     *
+     * @param n the maximum number of shapes
+     * @return the entries
+     */
+    public List<HeavyHitters.Entry> getTopByTime(int n) {
+        return byTime.getTop(n);
+    }
+
+    /**
+     * Get the number of queries, including the ones that could not be
+     * tokenized.
+     *
+     * @return the number of queries
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Print the report.
+     *
+     * @param out the target
+     * @param top the number of query shapes to list
+     */
+    public void print(PrintStream out, int top) {
+        out.println("Queries: " + lineCount + ", errors: " + errorCount);
+        out.println();
+        out.println("Top " + top + " by count");
+        out.println("count\terror\ttime ms\tfingerprint\tquery");
+        for (HeavyHitters.Entry e : getTopByCount(top)) {
+            printEntry(out, e, e.getTime());
+        }
+        out.println();
+        out.println("Top " + top + " by total time");
+        out.println("time ms\terror\tcount\tfingerprint\tquery");
+        for (HeavyHitters.Entry e : getTopByTime(top)) {
+            printEntry(out, e, e.getCount());
+        }
+    }
+
+    private static void printEntry(PrintStream out, HeavyHitters.Entry e, long other) {
+        out.println(e.getWeight() + "\t" + e.getError() + "\t" + other + "\t" +
+                QueryFingerprint.toString(e.getKey()) + "\t" + e.getSample());
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A command line tool that converts a file with one XPath query per line to
+ * SQL2, one query per line, in the same order.
+ * <p>
+ * The conversion is a pipeline: one thread reads batches of lines, a pool
+ * of threads converts them, and the results are written in the order of the
+ * input. The number of batches in flight is limited, so that the memory
+ * usage doesn't depend on the size of the input.
+ * <p>
+ * Empty lines are written as empty lines, and queries that can't be
+ * converted are written as "Error: " followed by the message, so that the
+ * line numbers of the input and output match.
+ */
+public class QueryLogConverter {
+
+    static final String ERROR_PREFIX = "Error: ";
+
+    private static final Future<String[]> END = new FutureTask<String[]>(() -> null);
+
+    private final int threads;
+    private final int batchSize;
+
+    private long lineCount;
+    private long errorCount;
+
+    public QueryLogConverter(int threads, int batchSize) {
+        if (threads < 1 || batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid threads " + threads + ", batch size " + batchSize);
+        }
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String... args) throws IOException {
+        String input = null, output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = 1000;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("-i".equals(a) && i + 1 < args.length) {
+                input = args[++i];
+            } else if ("-o".equals(a) && i + 1 < args.length) {
+                output = args[++i];
+            } else if ("-threads".equals(a) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-batch".equals(a) && i + 1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: java " + QueryLogConverter.class.getName() +
+                        " [-i <input file>] [-o <output file>]" +
+                        " [-threads <count>] [-batch <lines>]");
+                System.err.println("Reads from stdin and writes to stdout by default.");
+                System.exit(1);
+                return;
+            }
+        }
+        QueryLogConverter converter = new QueryLogConverter(threads, batchSize);
+        try (BufferedReader in = input == null ?
+                    new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16) :
+                    Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8);
+                Writer out = output == null ?
+                    new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16) :
+                    Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+            converter.convert(in, out);
+        }
+        System.err.println("Converted " + converter.getLineCount() + " lines, " +
+                converter.getErrorCount() + " errors");
+    }
+
+    /**
+     * Convert all lines of the reader, and write the result. The writer is
+     * flushed, but not closed.
+     *
+     * @param in the reader
+     * @param out the writer
+     * @throws IOException if reading or writing fails
+     */
+    public void convert(BufferedReader in, Writer out) throws IOException {
+        // the batches that are read but not yet written
+        BlockingQueue<Future<String[]>> queue =
+                new ArrayBlockingQueue<Future<String[]>>(2 * threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BatchReader reader = new BatchReader(in, queue, pool);
+        Thread thread = new Thread(reader, "QueryLogConverter reader");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            while (true) {
+                Future<String[]> f = queue.take();
+                if (f == END) {
+                    break;
+                }
+                for (String line : f.get()) {
+                    if (line.startsWith(ERROR_PREFIX)) {
+                        errorCount++;
+                    }
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Converting failed", e.getCause());
+        } finally {
+            thread.interrupt();
+            pool.shutdownNow();
+        }
+        if (reader.error != null) {
+            throw reader.error;
+        }
+        lineCount += reader.lineCount;
+        out.flush();
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Convert a batch of lines, using the converter of the current thread.
+     *
+     * @param lines the lines
+     * @return the converted lines
+     */
+    static String[] convertBatch(String[] lines) {
+        XPathToSQL2Converter converter = XPathToSQL2Converter.getConverter();
+        String[] result = new String[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.trim().isEmpty()) {
+                result[i] = "";
+                continue;
+            }
+            ConversionResult r = converter.convertOrError(line);
+            if (r.isSuccess()) {
+                result[i] = r.getSQL2();
+            } else {
+                String message = String.valueOf(r.getError().getMessage());
+                result[i] = ERROR_PREFIX + message.replace('\r', ' ').replace('\n', ' ');
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the input in batches, and submits them for conversion.
+     */
+    private class BatchReader implements Runnable {
+
+        private final BufferedReader in;
+        private final BlockingQueue<Future<String[]>> queue;
+        private final ExecutorService pool;
+
+        volatile IOException error;
+        volatile long lineCount;
+
+        BatchReader(BufferedReader in, BlockingQueue<Future<String[]>> queue, ExecutorService pool) {
+            this.in = in;
+            this.queue = queue;
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    String[] batch = new String[batchSize];
+                    int n = 0;
+                    long count = 0;
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        batch[n++] = line;
+                        count++;
+                        if (n == batchSize) {
+                            submit(batch);
+                            batch = new String[batchSize];
+                            n = 0;
+                        }
+                    }
+                    if (n > 0) {
+                        String[] last = new String[n];
+                        System.arraycopy(batch, 0, last, 0, n);
+                        submit(last);
+                    }
+                    lineCount = count;
+                } catch (IOException e) {
+                    error = e;
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // writing failed
+            }
+        }
+
+        private void submit(String[] batch) throws InterruptedException {
+            // blocks if the writer is behind
+            queue.put(pool.submit(() -> convertBatch(batch)));
+        }
+
+    }
+
+}
@@ -29,6 +29,9 @@ public class QueryOptions {
     public Optional<Long> offset = Optional.empty();
     public List<String> prefetch = Collections.emptyList();
     public Optional<Integer> prefetchCount = Optional.empty();
+
+    // The template slots of the offset, limit, and prefetch count, or -1
+    int offsetSlot = -1, limitSlot = -1, prefetchCountSlot = -1;
     
     public enum Traversal {
         // traversing without index is OK for this query, and does not fail or log a warning
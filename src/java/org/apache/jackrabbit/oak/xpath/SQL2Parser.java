@@ -16,16 +16,1013 @@
  */
 package org.apache.jackrabbit.oak.xpath;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.apache.jackrabbit.oak.xpath.QueryOptions.Traversal;
+import org.apache.jackrabbit.oak.xpath.Statement.UnionStatement;
+
 /**
- * The SQL2 parser can convert a JCR-SQL2 query to a query. The 'old' SQL query
- * language (here named SQL-1) is also supported.
+ * The SQL2 parser can convert a JCR-SQL2 query to a query. The result is a
+ * statement, with the same expression tree that the XPath converter
+ * creates, so that SQL2 and XPath queries can be analyzed the same way.
+ * <p>
+ * Supported are: explain and measure; the select list (column aliases are
+ * not kept); node type selectors with inner joins; the where condition with
+ * comparisons, like, in, is [not] null, and the full-text, path, and native
+ * conditions; functions and casts; union; order by; and the query options.
+ * Outer joins are not supported.
+ * <p>
+ * The tokenizer reads the query in place: strings are only created for
+ * names and literals that are used in the result. A parser instance can be
+ * used for multiple queries, but not concurrently.
  */
 public class SQL2Parser {
 
+    // Token types
+    private static final int IDENTIFIER = 1, NAME = 2, VALUE_STRING = 3, VALUE_NUMBER = 4;
+    private static final int PARAMETER = 5, SPECIAL = 6, END = 7;
+
+    // The keywords, including the cast types and traversal options. They
+    // are case insensitive, as are function names.
+    private static final String[] KEYWORDS = {
+        "and", "as", "asc", "by", "cast", "contains", "default", "desc",
+        "explain", "fail", "false", "from", "in", "index", "inner", "is",
+        "ischildnode", "isdescendantnode", "issamenode", "join", "left",
+        "like", "limit", "measure", "name", "native", "not", "null",
+        "offset", "ok", "on", "option", "or", "order", "prefetch",
+        "prefetches", "right", "select", "similar", "spellcheck", "suggest",
+        "tag", "traversal", "true", "union", "warn", "where",
+        "binary", "boolean", "date", "decimal", "double", "long", "path",
+        "reference", "string", "uri", "weakreference",
+    };
+
+    // One parser per thread, used by the static parse method
+    private static final ThreadLocal<SQL2Parser> PARSER =
+            ThreadLocal.withInitial(SQL2Parser::new);
+
+    private String statement;
+
+    // The current token is the range (currentTokenStart, parseIndex) of the
+    // statement; the string is only created when needed.
+    private int parseIndex;
+    private int currentTokenType;
+    private int currentTokenStart;
+    private String currentToken;
+    // for string values: whether the value contains escaped quotes
+    private boolean currentTokenEscaped;
+    private final ArrayList<String> expected = new ArrayList<String>();
+
+    // The selectors of the current select statement
+    private ArrayList<Selector> selectors;
+
+    private ConversionLimits limits = ConversionLimits.DEFAULT;
+    // The nesting depth of conditions and operands
+    private int depth;
+
+    private final QueryFingerprint fingerprint = new QueryFingerprint();
+
     public static String escapeStringLiteral(String value) {
         if (value.indexOf('\'') >= 0) {
             value = value.replace("'", "''");
         }
         return '\'' + value + '\'';
     }
+
+    /**
+     * Parse a SQL2 query, using a parser that is bound to the current
+     * thread. This method is thread-safe.
+     *
+     * @param query the query
+     * @return the statement
+     * @throws ParseException if parsing fails
+     */
+    public static Statement parseQuery(String query) throws ParseException {
+        return PARSER.get().parse(query);
+    }
+
+    /**
+     * Parse SQL2 queries, and write the normalized queries (one per line).
+     * The queries are the arguments, or the lines of stdin if there are
+     * none. Errors are written as "Error: ...".
+     *
+     * @param args the queries
+     */
+    public static void main(String... args) throws IOException {
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        if (args.length > 0) {
+            for (String q : args) {
+                out.println(normalize(q));
+            }
+        } else {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            for (String line; (line = in.readLine()) != null;) {
+                out.println(line.trim().isEmpty() ? "" : normalize(line));
+            }
+        }
+        out.flush();
+    }
+
+    private static String normalize(String query) {
+        try {
+            return parseQuery(query).toString();
+        } catch (ParseException e) {
+            String message = String.valueOf(e.getMessage());
+            return QueryLogConverter.ERROR_PREFIX + message.replace('\r', ' ').replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Whether the query is a SQL2 query, that is it starts with "select"
+     * (after "explain" and "measure", if present).
+     *
+     * @param query the query
+     * @return true for SQL2, false for XPath
+     */
+    static boolean isSQL2(String query) {
+        int i = skipWord(query, skipSpaces(query, 0), "explain");
+        i = skipWord(query, i, "measure");
+        return query.regionMatches(true, i, "select", 0, 6);
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipWord(String s, int i, String word) {
+        int end = i + word.length();
+        if (s.regionMatches(true, i, word, 0, word.length()) &&
+                end < s.length() && Character.isWhitespace(s.charAt(end))) {
+            return skipSpaces(s, end);
+        }
+        return i;
+    }
+
+    /**
+     * Get the parser that is bound to the current thread.
+     *
+     * @return the parser
+     */
+    static SQL2Parser getParser() {
+        return PARSER.get();
+    }
+
+    /**
+     * Set the limits. Only the nesting depth is checked, so that deeply
+     * nested queries fail with a parse exception instead of a stack
+     * overflow.
+     *
+     * @param limits the limits
+     */
+    public void setLimits(ConversionLimits limits) {
+        this.limits = limits;
+    }
+
+    public ConversionLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Parse a SQL2 query.
+     *
+     * @param query the query
+     * @return the statement (a union statement for union queries)
+     * @throws ParseException if parsing fails
+     */
+    public Statement parse(String query) throws ParseException {
+        statement = query;
+        parseIndex = 0;
+        depth = 0;
+        try {
+            read();
+            boolean explain = readIf("explain");
+            boolean measure = readIf("measure");
+            Statement result = parseSelect();
+            while (readIf("union")) {
+                result = new UnionStatement(result, parseSelect());
+            }
+            parseOrderBy(result);
+            if (readIf("option")) {
+                result.setQueryOptions(parseOptions());
+            }
+            if (currentTokenType != END) {
+                throw getSyntaxError();
+            }
+            result.setExplain(explain);
+            result.setMeasure(measure);
+            return result;
+        } finally {
+            statement = null;
+            selectors = null;
+            currentToken = null;
+        }
+    }
+
+    /**
+     * Get the fingerprint of a SQL2 query. Only the tokenizer is used.
+     *
+     * @param query the query
+     * @return the fingerprint
+     * @throws ParseException if tokenizing fails
+     */
+    long fingerprint(String query) throws ParseException {
+        statement = query;
+        parseIndex = 0;
+        QueryFingerprint f = fingerprint;
+        f.reset(true);
+        try {
+            for (read(); currentTokenType != END; read()) {
+                switch (currentTokenType) {
+                case VALUE_STRING:
+                case VALUE_NUMBER:
+                    f.literal();
+                    break;
+                case NAME:
+                    f.token(statement, currentTokenStart, parseIndex, currentTokenType, false);
+                    break;
+                case PARAMETER:
+                    // without the prefix, which is either '$' or '@'
+                    f.token(statement, currentTokenStart + 1, parseIndex, currentTokenType, false);
+                    break;
+                default:
+                    if (isToken("-")) {
+                        f.minus();
+                    } else if (isToken(",")) {
+                        f.comma();
+                    } else {
+                        // keywords and function names are case insensitive,
+                        // other identifiers (names) are not
+                        boolean ignoreCase = currentTokenType != IDENTIFIER ||
+                                isNextToken("(") || isKeyword();
+                        f.token(statement, currentTokenStart, parseIndex, currentTokenType,
+                                ignoreCase);
+                    }
+                }
+            }
+            return f.get();
+        } finally {
+            statement = null;
+        }
+    }
+
+    private Statement parseSelect() throws ParseException {
+        read("select");
+        Statement s = new Statement();
+        selectors = new ArrayList<Selector>();
+        // the columns refer to the selectors, so they are parsed afterwards
+        int columnStart = currentTokenStart;
+        int level = 0;
+        while (level > 0 || !isToken("from")) {
+            if (currentTokenType == END) {
+                read("from");
+            } else if (isToken("(")) {
+                level++;
+            } else if (isToken(")")) {
+                level--;
+            }
+            read();
+        }
+        read("from");
+        parseSelectors();
+        s.setSelectors(selectors);
+        int end = currentTokenStart;
+        parseIndex = columnStart;
+        read();
+        parseColumns(s);
+        parseIndex = end;
+        read();
+        if (readIf("where")) {
+            s.setWhere(parseConstraint());
+        }
+        return s;
+    }
+
+    private void parseColumns(Statement s) throws ParseException {
+        Selector columnSelector = null;
+        do {
+            if (readIf("*")) {
+                continue;
+            }
+            Expression e = parseOperand();
+            if (readIf("as")) {
+                // the alias is not kept
+                readName();
+            }
+            if (e instanceof Expression.Property) {
+                Expression.Property p = (Expression.Property) e;
+                if (columnSelector == null) {
+                    columnSelector = p.selector;
+                }
+                if (p.selector == columnSelector && ("*".equals(p.name) ||
+                        QueryConstants.JCR_PATH.equals(p.name) ||
+                        QueryConstants.JCR_SCORE.equals(p.name))) {
+                    // always part of the result
+                    continue;
+                }
+            }
+            s.addSelectColumn(e);
+        } while (readIf(","));
+        s.setColumnSelector(columnSelector != null ? columnSelector : selectors.get(0));
+    }
+
+    private void parseSelectors() throws ParseException {
+        selectors.add(parseSelector());
+        while (true) {
+            if (readIf("inner")) {
+                read("join");
+            } else if (!readIf("join")) {
+                if (isToken("left") || isToken("right")) {
+                    throw getSyntaxError("inner join (outer joins are not supported)");
+                }
+                break;
+            }
+            Selector s = parseSelector();
+            selectors.add(s);
+            read("on");
+            s.joinCondition = parseCondition();
+        }
+        if (selectors.size() == 1) {
+            selectors.get(0).onlySelector = true;
+        }
+    }
+
+    private Selector parseSelector() throws ParseException {
+        Selector s = new Selector();
+        s.nodeType = readName();
+        if (readIf("as")) {
+            s.name = readName();
+        } else {
+            s.name = s.nodeType;
+        }
+        for (Selector x : selectors) {
+            if (x.name.equals(s.name)) {
+                throw getSyntaxError("new selector name (" + s.name + " is already used)");
+            }
+        }
+        return s;
+    }
+
+    private Expression parseConstraint() throws ParseException {
+        Expression a = parseAnd();
+        if (!isToken("or")) {
+            return a;
+        }
+        ArrayList<Expression> list = new ArrayList<Expression>();
+        list.add(a);
+        while (readIf("or")) {
+            list.add(parseAnd());
+        }
+        return new Expression.OrCondition(list);
+    }
+
+    private Expression parseAnd() throws ParseException {
+        Expression a = parseCondition();
+        if (!isToken("and")) {
+            return a;
+        }
+        ArrayList<Expression> list = new ArrayList<Expression>();
+        list.add(a);
+        while (readIf("and")) {
+            list.add(parseCondition());
+        }
+        return new Expression.AndCondition(list);
+    }
+
+    private Expression parseCondition() throws ParseException {
+        if (readIf("not")) {
+            // "not(...)" is one level: the round bracket is counted below
+            int d = isToken("(") ? 0 : 1;
+            limits.checkDepth(depth += d, currentTokenStart);
+            Expression.Function f = new Expression.Function("not");
+            f.params.add(parseCondition());
+            depth -= d;
+            return f;
+        }
+        if (readIf("(")) {
+            enter();
+            Expression e = parseConstraint();
+            read(")");
+            depth--;
+            return e;
+        }
+        if (currentTokenType == IDENTIFIER && isNextToken("(")) {
+            String name = currentToken().toLowerCase(Locale.ENGLISH);
+            switch (name) {
+            case "contains": {
+                read();
+                read("(");
+                Expression left = parseOperand();
+                read(",");
+                Expression right = parseOperand();
+                read(")");
+                return new Expression.Contains(left, right);
+            }
+            case "isdescendantnode":
+            case "ischildnode":
+            case "issamenode":
+                read();
+                read("(");
+                return parseFunction(name);
+            case "native": {
+                read();
+                read("(");
+                String selectorName;
+                if ((currentTokenType == IDENTIFIER || currentTokenType == NAME) &&
+                        isNextToken(",")) {
+                    selectorName = getSelector(readName()).name;
+                    read(",");
+                } else {
+                    selectorName = getSelector(null).name;
+                }
+                Expression language = parseOperand();
+                read(",");
+                Expression expression = parseOperand();
+                read(")");
+                return new Expression.NativeFunction(selectorName, language, expression);
+            }
+            case "similar": {
+                read();
+                read("(");
+                Expression property = parseOperand();
+                read(",");
+                Expression path = parseOperand();
+                read(")");
+                return new Expression.Similar(property, path);
+            }
+            case "spellcheck":
+            case "suggest": {
+                read();
+                read("(");
+                if (currentTokenType == IDENTIFIER && isNextToken(",")) {
+                    // the selector
+                    getSelector(readName());
+                    read(",");
+                }
+                Expression term = parseOperand();
+                read(")");
+                return "spellcheck".equals(name) ?
+                        new Expression.Spellcheck(term) : new Expression.Suggest(term);
+            }
+            default:
+            }
+        }
+        Expression left = parseOperand();
+        String op;
+        if (readIf("=")) {
+            op = "=";
+        } else if (readIf("<>") || readIf("!=")) {
+            op = "<>";
+        } else if (readIf("<")) {
+            op = "<";
+        } else if (readIf(">")) {
+            op = ">";
+        } else if (readIf("<=")) {
+            op = "<=";
+        } else if (readIf(">=")) {
+            op = ">=";
+        } else if (readIf("like")) {
+            op = "like";
+        } else if (readIf("is")) {
+            boolean not = readIf("not");
+            read("null");
+            return new Expression.Condition(left, not ? "is not null" : "is null", null,
+                    Expression.PRECEDENCE_CONDITION);
+        } else if (readIf("in")) {
+            read("(");
+            ArrayList<Expression> list = new ArrayList<Expression>();
+            do {
+                list.add(parseOperand());
+            } while (readIf(","));
+            read(")");
+            return new Expression.InCondition(left, list);
+        } else {
+            throw getSyntaxError();
+        }
+        Expression right = parseOperand();
+        if (left.isName() && right instanceof Expression.Literal && !"like".equals(op)) {
+            Expression.Literal l = (Expression.Literal) right;
+            if (l.value.startsWith("'")) {
+                // names are compared against the ISO 9075 encoded name,
+                // as in XPath (the condition decodes it)
+                right = new Expression.Literal(l.value, ISO9075.encode(l.rawText));
+            }
+        }
+        return new Expression.Condition(left, op, right, Expression.PRECEDENCE_CONDITION);
+    }
+
+    /**
+     * Parse an operand: a property, a function call, or a literal.
+     *
+     * @return the expression
+     */
+    private Expression parseOperand() throws ParseException {
+        Expression e;
+        switch (currentTokenType) {
+        case VALUE_STRING:
+            e = Expression.Literal.newString(currentToken());
+            read();
+            return e;
+        case VALUE_NUMBER:
+            e = Expression.Literal.newNumber(currentToken());
+            read();
+            return e;
+        case PARAMETER:
+            e = Expression.Literal.newBindVariable(currentToken());
+            read();
+            return e;
+        case NAME: {
+            String name = readName();
+            if (readIf(".")) {
+                // a selector name in square brackets, as in "[my type].[x]"
+                return parseProperty(getSelector(name));
+            }
+            return new Expression.Property(getSelector(null), name, false);
+        }
+        case IDENTIFIER:
+            break;
+        default:
+            if (readIf("-")) {
+                if (currentTokenType != VALUE_NUMBER) {
+                    throw getSyntaxError("number");
+                }
+                e = Expression.Literal.newNumber("-" + currentToken());
+                read();
+                return e;
+            }
+            if (readIf("*")) {
+                // all properties, as in "contains(*, 'x')"
+                return new Expression.Property(getSelector(null), "*", false);
+            }
+            readIf("+");
+            addExpected("property");
+            addExpected("value");
+            throw getSyntaxError();
+        }
+        if (readIf("cast")) {
+            read("(");
+            enter();
+            Expression x = parseOperand();
+            depth--;
+            read("as");
+            String type = readName().toLowerCase(Locale.ENGLISH);
+            read(")");
+            return new Expression.Cast(x, type);
+        } else if (readIf("true")) {
+            return Expression.Literal.newBoolean(true);
+        } else if (readIf("false")) {
+            return Expression.Literal.newBoolean(false);
+        }
+        String name = readName();
+        if (readIf("(")) {
+            return parseFunction(name.toLowerCase(Locale.ENGLISH));
+        } else if (readIf(".")) {
+            return parseProperty(getSelector(name));
+        }
+        return new Expression.Property(getSelector(null), name, false);
+    }
+
+    /**
+     * Parse the property after the selector name and the dot.
+     *
+     * @param s the selector
+     * @return the property
+     */
+    private Expression.Property parseProperty(Selector s) throws ParseException {
+        if (readIf("*")) {
+            return new Expression.Property(s, "*", false);
+        }
+        return new Expression.Property(s, readName(), false);
+    }
+
+    /**
+     * Parse the parameters of a function call. Parameters that are selector
+     * names are selector expressions.
+     *
+     * @param name the function name
+     * @return the function
+     */
+    private Expression.Function parseFunction(String name) throws ParseException {
+        Expression.Function f = new Expression.Function(name);
+        if (readIf(")")) {
+            return f;
+        }
+        enter();
+        do {
+            if ((currentTokenType == IDENTIFIER || currentTokenType == NAME) &&
+                    (isNextToken(",") || isNextToken(")"))) {
+                Selector s = findSelector(currentToken());
+                if (s != null) {
+                    read();
+                    f.params.add(new Expression.SelectorExpr(s));
+                    continue;
+                }
+            }
+            if (currentTokenType == NAME && isPathFunction(name)) {
+                // a path in square brackets
+                f.params.add(Expression.Literal.newString(readName()));
+                continue;
+            }
+            f.params.add(parseOperand());
+        } while (readIf(","));
+        depth--;
+        read(")");
+        return f;
+    }
+
+    /**
+     * Enter a nested condition or operand.
+     *
+     * @throws ParseException if the nesting depth exceeds the limit
+     */
+    private void enter() throws ParseException {
+        limits.checkDepth(++depth, currentTokenStart);
+    }
+
+    private static boolean isPathFunction(String name) {
+        return "isdescendantnode".equals(name) || "ischildnode".equals(name) ||
+                "issamenode".equals(name);
+    }
+
+    private void parseOrderBy(Statement s) throws ParseException {
+        if (!readIf("order")) {
+            return;
+        }
+        read("by");
+        do {
+            Order order = new Order();
+            order.expr = parseOperand();
+            if (readIf("desc")) {
+                order.descending = true;
+            } else {
+                readIf("asc");
+            }
+            s.addOrderBy(order);
+        } while (readIf(","));
+    }
+
+    private QueryOptions parseOptions() throws ParseException {
+        read("(");
+        QueryOptions options = new QueryOptions();
+        if (readIf(")")) {
+            // as rendered for the default options
+            return options;
+        }
+        do {
+            if (readIf("traversal")) {
+                String t = readName().toUpperCase(Locale.ENGLISH);
+                try {
+                    options.traversal = Traversal.valueOf(t);
+                } catch (IllegalArgumentException e) {
+                    throw getSyntaxError("ok, warn, fail, default");
+                }
+            } else if (readIf("index")) {
+                if (readIf("name")) {
+                    options.indexName = readName();
+                } else {
+                    read("tag");
+                    options.indexTag = readName();
+                }
+            } else if (readIf("offset")) {
+                options.offset = Optional.of(readLong());
+            } else if (readIf("limit")) {
+                options.limit = Optional.of(readLong());
+            } else if (readIf("prefetches")) {
+                options.prefetchCount = Optional.of((int) readLong());
+            } else if (readIf("prefetch")) {
+                read("(");
+                ArrayList<String> list = new ArrayList<String>();
+                do {
+                    if (currentTokenType != VALUE_STRING) {
+                        throw getSyntaxError("string");
+                    }
+                    list.add(currentToken());
+                    read();
+                } while (readIf(","));
+                read(")");
+                options.prefetch = list;
+            } else {
+                throw getSyntaxError();
+            }
+        } while (readIf(","));
+        read(")");
+        return options;
+    }
+
+    /**
+     * Get the selector with the given name.
+     *
+     * @param name the name, or null for the only selector
+     * @return the selector
+     * @throws ParseException if there is no such selector
+     */
+    private Selector getSelector(String name) throws ParseException {
+        if (name == null) {
+            if (selectors.size() != 1) {
+                throw getSyntaxError("selector name (there are multiple selectors)");
+            }
+            return selectors.get(0);
+        }
+        Selector s = findSelector(name);
+        if (s == null) {
+            throw getSyntaxError("selector name (unknown selector " + name + ")");
+        }
+        return s;
+    }
+
+    private Selector findSelector(String name) {
+        for (Selector s : selectors) {
+            if (s.name.equals(name)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private long readLong() throws ParseException {
+        if (currentTokenType != VALUE_NUMBER) {
+            throw getSyntaxError("number");
+        }
+        try {
+            long x = Long.parseLong(currentToken());
+            read();
+            return x;
+        } catch (NumberFormatException e) {
+            throw getSyntaxError("integer");
+        }
+    }
+
+    /**
+     * Read a name: an identifier, or a name in square brackets.
+     *
+     * @return the name
+     */
+    private String readName() throws ParseException {
+        String s;
+        if (currentTokenType == NAME || currentTokenType == IDENTIFIER) {
+            s = currentToken();
+        } else {
+            throw getSyntaxError("name");
+        }
+        read();
+        return s;
+    }
+
+    private boolean readIf(String token) throws ParseException {
+        if (isToken(token)) {
+            read();
+            return true;
+        }
+        addExpected(token);
+        return false;
+    }
+
+    private void read(String token) throws ParseException {
+        if (!readIf(token)) {
+            throw getSyntaxError();
+        }
+    }
+
+    /**
+     * Whether the current token is the given keyword (case insensitive) or
+     * special character.
+     *
+     * @param token the token
+     * @return true if yes
+     */
+    private boolean isToken(String token) {
+        if (currentTokenType != IDENTIFIER && currentTokenType != SPECIAL) {
+            return false;
+        }
+        int len = parseIndex - currentTokenStart;
+        return len == token.length() &&
+                statement.regionMatches(true, currentTokenStart, token, 0, len);
+    }
+
+    /**
+     * Whether the current token is a keyword (case insensitive).
+     *
+     * @return true if yes
+     */
+    private boolean isKeyword() {
+        for (String k : KEYWORDS) {
+            if (isToken(k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the next token starts with the given character, without
+     * reading it.
+     *
+     * @param token the token (one character)
+     * @return true if yes
+     */
+    private boolean isNextToken(String token) {
+        int i = parseIndex, len = statement.length();
+        while (i < len && statement.charAt(i) <= ' ') {
+            i++;
+        }
+        return i < len && statement.charAt(i) == token.charAt(0);
+    }
+
+    /**
+     * Get the current token as a string. For string values, this is the
+     * unescaped value without quotes; for names, the name without brackets;
+     * for parameters, the name without prefix.
+     *
+     * @return the token
+     */
+    private String currentToken() {
+        String t = currentToken;
+        if (t == null) {
+            switch (currentTokenType) {
+            case VALUE_STRING:
+                t = statement.substring(currentTokenStart + 1, parseIndex - 1);
+                if (currentTokenEscaped) {
+                    char quote = statement.charAt(currentTokenStart);
+                    t = quote == '\'' ? t.replace("''", "'") : t.replace("\"\"", "\"");
+                }
+                break;
+            case NAME:
+                t = statement.substring(currentTokenStart + 1, parseIndex - 1);
+                break;
+            case PARAMETER:
+                t = statement.substring(currentTokenStart + 1, parseIndex);
+                break;
+            default:
+                t = statement.substring(currentTokenStart, parseIndex);
+            }
+            currentToken = t;
+        }
+        return t;
+    }
+
+    private void addExpected(String token) {
+        expected.add(token);
+    }
+
+    private void read() throws ParseException {
+        expected.clear();
+        currentToken = null;
+        String s = statement;
+        int len = s.length();
+        int i = parseIndex;
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c <= ' ') {
+                i++;
+            } else if (c == '/' && i + 1 < len && s.charAt(i + 1) == '*') {
+                int end = s.indexOf("*/", i + 2);
+                if (end < 0) {
+                    parseIndex = i;
+                    throw getSyntaxError("*/");
+                }
+                i = end + 2;
+            } else {
+                break;
+            }
+        }
+        currentTokenStart = i;
+        if (i >= len) {
+            currentTokenType = END;
+            parseIndex = i;
+            return;
+        }
+        char c = s.charAt(i);
+        switch (c) {
+        case '\'':
+        case '\"': {
+            // quotes within strings are escaped by doubling them
+            boolean escaped = false;
+            int end = i;
+            while (true) {
+                end = s.indexOf(c, end + 1);
+                if (end < 0) {
+                    parseIndex = i;
+                    throw getSyntaxError("string end");
+                }
+                if (end + 1 < len && s.charAt(end + 1) == c) {
+                    escaped = true;
+                    end++;
+                } else {
+                    break;
+                }
+            }
+            currentTokenEscaped = escaped;
+            currentTokenType = VALUE_STRING;
+            parseIndex = end + 1;
+            return;
+        }
+        case '[': {
+            int end = s.indexOf(']', i + 1);
+            if (end < 0) {
+                parseIndex = i;
+                throw getSyntaxError("]");
+            }
+            currentTokenType = NAME;
+            parseIndex = end + 1;
+            return;
+        }
+        case '$':
+        case '@': {
+            // bind variables; the converter renders them with '@'
+            int end = i + 1;
+            while (end < len && isNameChar(s.charAt(end))) {
+                end++;
+            }
+            currentTokenType = PARAMETER;
+            parseIndex = end;
+            return;
+        }
+        case '<':
+            i += i + 1 < len && (s.charAt(i + 1) == '=' || s.charAt(i + 1) == '>') ? 2 : 1;
+            break;
+        case '>':
+        case '!':
+            i += i + 1 < len && s.charAt(i + 1) == '=' ? 2 : 1;
+            break;
+        default:
+            if ((c >= '0' && c <= '9') || (c == '.' && i + 1 < len &&
+                    s.charAt(i + 1) >= '0' && s.charAt(i + 1) <= '9')) {
+                parseIndex = readNumber(i);
+                currentTokenType = VALUE_NUMBER;
+                return;
+            }
+            if (Character.isLetter(c) || c == '_') {
+                while (i < len && isNameChar(s.charAt(i))) {
+                    i++;
+                }
+                currentTokenType = IDENTIFIER;
+                parseIndex = i;
+                return;
+            }
+            i++;
+        }
+        currentTokenType = SPECIAL;
+        parseIndex = i;
+    }
+
+    private int readNumber(int i) {
+        String s = statement;
+        int len = s.length();
+        while (i < len && Character.isDigit(s.charAt(i))) {
+            i++;
+        }
+        if (i < len && s.charAt(i) == '.') {
+            i++;
+            while (i < len && Character.isDigit(s.charAt(i))) {
+                i++;
+            }
+        }
+        if (i + 1 < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (s.charAt(j) == '+' || s.charAt(j) == '-') {
+                j++;
+            }
+            if (j < len && Character.isDigit(s.charAt(j))) {
+                i = j;
+                while (i < len && Character.isDigit(s.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == ':';
+    }
+
+    private ParseException getSyntaxError() {
+        if (expected.isEmpty()) {
+            return getSyntaxError(null);
+        }
+        return getSyntaxError(String.join(", ", expected));
+    }
+
+    private ParseException getSyntaxError(String expected) {
+        int index = Math.max(0, Math.min(currentTokenStart, statement.length() - 1));
+        if (currentTokenType == END) {
+            index = statement.length();
+        }
+        String query = statement.substring(0, index) + "(*)" + statement.substring(index).trim();
+        if (expected != null) {
+            query += "; expected: " + expected;
+        }
+        return new ParseException("Query:\n" + query, index);
+    }
+
 }
@@ -17,9 +17,10 @@
 package org.apache.jackrabbit.oak.xpath;
 
 /**
- * A selector.
+ * A selector. The selectors of a converted query can be read using the
+ * getter methods; they should not be modified.
  */
-class Selector {
+public class Selector {
 
     /**
      * The selector name.
@@ -70,7 +71,7 @@ class Selector {
     /**
      * The path (only used for the first selector).
      */
-    String path = "";
+    NodePath path = NodePath.EMPTY;
     
     /**
      * The node name, if set.
@@ -102,5 +103,84 @@ class Selector {
         this.condition = s.condition;
         this.joinCondition = s.joinCondition;
     }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Append a selector name as used in SQL2: as is if it is an identifier
+     * (for example "a" or "nt:base"), and otherwise in square brackets (for
+     * example "[my type]").
+     *
+     * @param buff the target buffer
+     * @param name the selector name
+     */
+    static void appendName(StringBuilder buff, String name) {
+        boolean identifier = !name.isEmpty() &&
+                (Character.isLetter(name.charAt(0)) || name.charAt(0) == '_');
+        for (int i = 1; identifier && i < name.length(); i++) {
+            identifier = SQL2Parser.isNameChar(name.charAt(i));
+        }
+        if (identifier) {
+            buff.append(name);
+        } else {
+            buff.append('[').append(name).append(']');
+        }
+    }
+
+    /**
+     * Get the node type.
+     *
+     * @return the node type, or null for "nt:base"
+     */
+    public String getNodeType() {
+        return nodeType;
+    }
+
+    public boolean isChild() {
+        return isChild;
+    }
+
+    public boolean isParent() {
+        return isParent;
+    }
+
+    public boolean isDescendant() {
+        return isDescendant;
+    }
+
+    /**
+     * Get the path restriction. This is only set for the first selector.
+     *
+     * @return the path, or an empty string
+     */
+    public String getPath() {
+        return path.toString();
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * Get the condition of this selector. The condition (including the
+     * path restriction) is also part of the where condition of the
+     * statement.
+     *
+     * @return the condition, or null
+     */
+    public Expression getCondition() {
+        return condition;
+    }
+
+    /**
+     * Get the join condition from the previous selector.
+     *
+     * @return the join condition, or null
+     */
+    public Expression getJoinCondition() {
+        return joinCondition;
+    }
     
 }
\ No newline at end of file
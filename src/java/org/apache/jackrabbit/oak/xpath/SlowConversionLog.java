@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.xpath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A log of the slowest XPath to SQL2 conversions, to find pathological
+ * queries in production. Conversions that take longer than the threshold
+ * are kept in a log of fixed size: if the log is full, the fastest entry is
+ * replaced if the new conversion was slower, so that a burst of merely slow
+ * conversions doesn't push out the pathological ones.
+ * <p>
+ * The size and threshold of the global log can be set with the system
+ * properties "oak.xpathSlowConversionLogSize" and
+ * "oak.xpathSlowConversionMillis". It is safe to use concurrently.
+ */
+public class SlowConversionLog {
+
+    /**
+     * The default number of entries.
+     */
+    public static final int DEFAULT_SIZE = 32;
+
+    /**
+     * The default threshold, in milliseconds.
+     */
+    public static final long DEFAULT_THRESHOLD_MILLIS = 10;
+
+    /**
+     * Longer queries are truncated, so that the memory usage is bounded.
+     */
+    static final int MAX_QUERY_LENGTH = 4096;
+
+    private static final SlowConversionLog INSTANCE = new SlowConversionLog(
+            Integer.getInteger("oak.xpathSlowConversionLogSize", DEFAULT_SIZE),
+            Long.getLong("oak.xpathSlowConversionMillis", DEFAULT_THRESHOLD_MILLIS));
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong addCount = new AtomicLong();
+    private volatile long thresholdNanos;
+
+    public SlowConversionLog(int size, long thresholdMillis) {
+        if (size < 1 || thresholdMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid size " + size + ", threshold " + thresholdMillis);
+        }
+        entries = new AtomicReferenceArray<Entry>(size);
+        setThresholdMillis(thresholdMillis);
+    }
+
+    /**
+     * Get the log that is used by the converter.
+     *
+     * @return the log
+     */
+    public static SlowConversionLog getInstance() {
+        return INSTANCE;
+    }
+
+    public long getThresholdMillis() {
+        return thresholdNanos / 1_000_000;
+    }
+
+    public void setThresholdMillis(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+    }
+
+    /**
+     * Whether a conversion that took the given time should be logged.
+     *
+     * @param nanos the time in nanoseconds
+     * @return true if yes
+     */
+    boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /**
+     * Add an entry. If the log is full, the fastest entry is replaced, but
+     * only if the new entry is slower.
+     *
+     * @param e the entry
+     */
+    void add(Entry e) {
+        addCount.incrementAndGet();
+        while (true) {
+            // find a free slot, or else the fastest entry
+            int slot = 0;
+            Entry fastest = null;
+            for (int i = 0; i < entries.length(); i++) {
+                Entry x = entries.get(i);
+                if (x == null) {
+                    slot = i;
+                    fastest = null;
+                    break;
+                } else if (fastest == null || x.time < fastest.time) {
+                    slot = i;
+                    fastest = x;
+                }
+            }
+            if (fastest != null && fastest.time >= e.time) {
+                return;
+            }
+            // retry if another thread changed the slot concurrently
+            if (entries.compareAndSet(slot, fastest, e)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the entries, the slowest first.
+     *
+     * @return the list of entries
+     */
+    public List<Entry> getEntries() {
+        ArrayList<Entry> list = new ArrayList<Entry>();
+        for (int i = 0; i < entries.length(); i++) {
+            Entry e = entries.get(i);
+            if (e != null) {
+                list.add(e);
+            }
+        }
+        list.sort(Comparator.comparingLong(Entry::getTime).reversed());
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Get the number of slow conversions since the log was created.
+     *
+     * @return the count
+     */
+    public long getSlowCount() {
+        return addCount.get();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, null);
+        }
+    }
+
+    /**
+     * A slow conversion. Times are in nanoseconds.
+     */
+    public static class Entry {
+
+        private final long timestamp;
+        private final String query;
+        private final long time;
+        private final long tokenizeTime, parseTime, unionTime, optimizeTime, renderTime;
+        private final int tokenCount, selectorCount, unionBranchCount;
+        private final String error;
+
+        Entry(long timestamp, String query, long time,
+                long tokenizeTime, long parseTime, long unionTime,
+                long optimizeTime, long renderTime,
+                int tokenCount, int selectorCount, int unionBranchCount,
+                String error) {
+            this.timestamp = timestamp;
+            this.query = query.length() > MAX_QUERY_LENGTH ?
+                    query.substring(0, MAX_QUERY_LENGTH) + "..." : query;
+            this.time = time;
+            this.tokenizeTime = tokenizeTime;
+            this.parseTime = parseTime;
+            this.unionTime = unionTime;
+            this.optimizeTime = optimizeTime;
+            this.renderTime = renderTime;
+            this.tokenCount = tokenCount;
+            this.selectorCount = selectorCount;
+            this.unionBranchCount = unionBranchCount;
+            this.error = error;
+        }
+
+        /**
+         * Get the time when the conversion ended, in milliseconds since
+         * the epoch.
+         *
+         * @return the timestamp
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the XPath query (truncated if it is very long).
+         *
+         * @return the query
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getTokenizeTime() {
+            return tokenizeTime;
+        }
+
+        public long getParseTime() {
+            return parseTime;
+        }
+
+        public long getUnionTime() {
+            return unionTime;
+        }
+
+        public long getOptimizeTime() {
+            return optimizeTime;
+        }
+
+        public long getRenderTime() {
+            return renderTime;
+        }
+
+        public int getTokenCount() {
+            return tokenCount;
+        }
+
+        public int getSelectorCount() {
+            return selectorCount;
+        }
+
+        public int getUnionBranchCount() {
+            return unionBranchCount;
+        }
+
+        /**
+         * Get the error message, if converting failed.
+         *
+         * @return the message, or null
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return time / 1000 + " us" +
+                    " (tokenize " + tokenizeTime / 1000 +
+                    ", parse " + parseTime / 1000 +
+                    ", union " + unionTime / 1000 +
+                    ", optimize " + optimizeTime / 1000 +
+                    ", render " + renderTime / 1000 + ")" +
+                    ", tokens: " + tokenCount +
+                    ", selectors: " + selectorCount +
+                    ", branches: " + unionBranchCount +
+                    (error == null ? "" : ", error: " + error) +
+                    ", query: " + query;
+        }
+
+    }
+
+}
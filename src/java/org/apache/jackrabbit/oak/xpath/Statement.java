@@ -16,9 +16,11 @@
  */
 package org.apache.jackrabbit.oak.xpath;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.apache.jackrabbit.oak.xpath.QueryOptions.Traversal;
 
@@ -55,7 +57,41 @@ public class Statement {
     @Override
     public String toString() {
         StringBuilder buff = new StringBuilder();
-        
+        appendTo(buff);
+        return buff.toString();
+    }
+
+    /**
+     * Write the SQL2 query to the output. For union queries, each
+     * statement of the union is written as soon as it is rendered.
+     *
+     * @param out the output
+     * @throws IOException if writing fails
+     */
+    public void appendTo(Appendable out) throws IOException {
+        StringBuilder buff = new StringBuilder();
+        appendTo(buff, out);
+        out.append(buff);
+    }
+
+    /**
+     * Append the SQL2 query, and possibly write parts of the buffer to the
+     * output.
+     *
+     * @param buff the buffer
+     * @param out the output, or null to only append to the buffer
+     * @throws IOException if writing fails
+     */
+    void appendTo(StringBuilder buff, Appendable out) throws IOException {
+        appendTo(buff);
+    }
+
+    /**
+     * Append the SQL2 query.
+     *
+     * @param buff the target buffer
+     */
+    public void appendTo(StringBuilder buff) {
         // explain | measure ...
         if (explain) {
             buff.append("explain ");
@@ -82,8 +118,7 @@ public class Statement {
             for (int i = 0; i < columnList.size(); i++) {
                 buff.append(", ");
                 Expression e = columnList.get(i);
-                String columnName = e.toString();
-                buff.append(columnName);
+                e.appendTo(buff);
                 if (selectors.size() > 1) {
                     buff.append(" as [").append(e.getColumnAliasName()).append("]");
                 }
@@ -101,34 +136,192 @@ public class Statement {
             if (nodeType == null) {
                 nodeType = "nt:base";
             }
-            buff.append('[' + nodeType + ']').append(" as ").append(s.name);
+            // without an alias, the selector name is the node type
+            boolean alias = !nodeType.equals(s.name);
+            int slot = PreparedQuery.getSlot(nodeType);
+            if (slot >= 0) {
+                // a template slot: the node type is a literal
+                nodeType = PreparedQuery.marker(slot, PreparedQuery.NODE_TYPE);
+            }
+            buff.append('[').append(nodeType).append(']');
+            if (alias) {
+                buff.append(" as ");
+                Selector.appendName(buff, s.name);
+            }
             if (s.joinCondition != null) {
-                buff.append(" on ").append(s.joinCondition);
+                buff.append(" on ");
+                s.joinCondition.appendTo(buff);
             }
         }
         
         // where ...
         if (where != null) {
-            buff.append(" where ").append(where.toString());
+            buff.append(" where ");
+            where.appendTo(buff);
         }
         
-        // order by ...
-        if (!orderList.isEmpty()) {
-            buff.append(" order by ");
-            for (int i = 0; i < orderList.size(); i++) {
-                if (i > 0) {
-                    buff.append(", ");
-                }
-                buff.append(orderList.get(i));
-            }
-        }
+        appendOrderBy(buff, orderList);
         appendQueryOptions(buff, queryOptions);
         // leave original xpath string as a comment
         appendXPathAsComment(buff, xpathQuery);
-        return buff.toString();        
     }
 
 
+    /**
+     * Optimize the statement.
+     * <p>
+     * Conditions of the form "a or b", where no single index can be used
+     * for both "a" and "b", are converted to a union, with the other "and"
+     * conditions added to each statement. This is the case if only one of
+     * them is a full-text condition, or if both are node type conditions
+     * (if NODETYPE_UNION is enabled). Only one such condition is split:
+     * the where condition itself, or the first one of the top-level "and"
+     * condition. The statements are not split further, so that the number
+     * of statements is at most the number of terms. If there are more terms
+     * than the union branch limit, the statement is not split.
+     * <p>
+     * If the node type of a selector is not set, and the where condition
+     * requires a node type (a condition of the form "[jcr:primaryType] =
+     * 'x'"), then the node type of the selector is set to that type, so that
+     * an index for this node type can be used. The condition itself is kept.
+     *
+     * @param limits the limits (the maximum number of union branches is used)
+     * @return the optimized statement (possibly a union)
+     */
+    public Statement optimize(ConversionLimits limits) {
+        if (where == null) {
+            return this;
+        }
+        where = where.optimize();
+        List<Expression> unionList = getUnionList(where, limits.getMaxUnionBranches());
+        if (unionList != null) {
+            Statement result = null;
+            for (Expression e : unionList) {
+                Statement s = copyWithCondition(e);
+                s.optimizeSelectorNodeTypes();
+                result = result == null ? s : new UnionStatement(result, s);
+            }
+            result.orderList = orderList;
+            result.queryOptions = queryOptions;
+            result.explain = explain;
+            result.measure = measure;
+            result.xpathQuery = xpathQuery;
+            return result;
+        }
+        optimizeSelectorNodeTypes();
+        return this;
+    }
+
+    private void optimizeSelectorNodeTypes() {
+        if (!XPathToSQL2Converter.NODETYPE_OPTIMIZATION || where == null) {
+            return;
+        }
+        for (Selector s : selectors) {
+            if (s.nodeType == null || "nt:base".equals(s.nodeType)) {
+                String nodeType = where.getMostSpecificNodeType(s.name);
+                if (nodeType != null) {
+                    s.nodeType = nodeType;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the conditions of the union: the terms of the "or" condition that
+     * is split, each combined with the other "and" conditions.
+     *
+     * @param condition the where condition
+     * @param maxSize the maximum number of statements
+     * @return the conditions, or null if no union should be used
+     */
+    private static List<Expression> getUnionList(Expression condition, int maxSize) {
+        Expression.AndCondition and = null;
+        Expression.OrCondition or = null;
+        int index = -1;
+        if (condition instanceof Expression.OrCondition) {
+            or = (Expression.OrCondition) condition;
+        } else if (condition instanceof Expression.AndCondition) {
+            // "@a = 1 and (@x = 1 or @y = 2)" is converted to
+            // "(@a = 1 and @x = 1) union (@a = 1 and @y = 2)"
+            and = (Expression.AndCondition) condition;
+            for (int i = 0; i < and.list.size(); i++) {
+                Expression e = and.list.get(i);
+                if (e instanceof Expression.OrCondition &&
+                        isUnionCandidate((Expression.OrCondition) e)) {
+                    or = (Expression.OrCondition) e;
+                    index = i;
+                    break;
+                }
+            }
+        }
+        if (or == null || !isUnionCandidate(or) || or.list.size() > maxSize) {
+            return null;
+        }
+        ArrayList<Expression> unionList = new ArrayList<Expression>(or.list.size());
+        for (Expression e : or.list) {
+            if (and == null) {
+                unionList.add(e);
+            } else {
+                ArrayList<Expression> terms = new ArrayList<Expression>(and.list);
+                terms.set(index, e);
+                unionList.add(new Expression.AndCondition(terms));
+            }
+        }
+        return unionList;
+    }
+
+    /**
+     * Whether an "or" condition should be converted to a union, because no
+     * single index can be used for it.
+     *
+     * @param or the condition
+     * @return true if yes
+     */
+    private static boolean isUnionCandidate(Expression.OrCondition or) {
+        String commonLeft = or.getCommonLeftPart();
+        if (commonLeft != null) {
+            // "[jcr:primaryType] = 'a' or [jcr:primaryType] = 'b'"
+            return XPathToSQL2Converter.NODETYPE_UNION &&
+                    commonLeft.endsWith("[jcr:primaryType]");
+        }
+        // "contains(*, 'a') or [x] = 'b'", but not
+        // "contains(*, 'a') or contains([y], 'b')"
+        boolean fullText = false, other = false;
+        for (Expression e : or.list) {
+            if (e.containsFullTextCondition()) {
+                fullText = true;
+            } else {
+                other = true;
+            }
+        }
+        return fullText && other;
+    }
+
+    /**
+     * Create a copy of this statement with the given where condition, and
+     * without order by and options. The selectors are copied, so that their
+     * node type can be changed. The condition still refers to the original
+     * selectors; they have the same names as the copies.
+     *
+     * @param condition the where condition
+     * @return the copy
+     */
+    private Statement copyWithCondition(Expression condition) {
+        Statement s = new Statement();
+        s.columnList = columnList;
+        s.selectors = new ArrayList<Selector>(selectors.size());
+        for (Selector sel : selectors) {
+            Selector copy = new Selector(sel);
+            s.selectors.add(copy);
+            if (sel == columnSelector) {
+                s.columnSelector = copy;
+            }
+        }
+        s.where = condition;
+        s.xpathQuery = xpathQuery;
+        return s;
+    }
+
     public void setExplain(boolean explain) {
         this.explain = explain;
     }
@@ -137,8 +330,8 @@ public class Statement {
         this.measure = measure;
     }
 
-    public void addSelectColumn(Expression.Property p) {
-        columnList.add(p);
+    public void addSelectColumn(Expression e) {
+        columnList.add(e);
     }
 
     public void setSelectors(ArrayList<Selector> selectors) {
@@ -166,7 +359,7 @@ public class Statement {
      */
     static class UnionStatement extends Statement {
         
-        private final Statement s1, s2;
+        private Statement s1, s2;
         
         UnionStatement(Statement s1, Statement s2) {
             this.s1 = s1;
@@ -174,8 +367,17 @@ public class Statement {
         }
         
         @Override
-        public String toString() {
-            StringBuilder buff = new StringBuilder();
+        public void appendTo(StringBuilder buff) {
+            try {
+                appendTo(buff, null);
+            } catch (IOException e) {
+                // can not happen, as nothing is written
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        void appendTo(StringBuilder buff, Appendable out) throws IOException {
             // explain | measure ...
             if (explain) {
                 buff.append("explain ");
@@ -183,59 +385,142 @@ public class Statement {
             if (measure) {
                 buff.append("measure ");
             }
-            buff.append(s1).append(" union ").append(s2);
-            // order by ...
-            if (orderList != null && !orderList.isEmpty()) {
-                buff.append(" order by ");
-                for (int i = 0; i < orderList.size(); i++) {
-                    if (i > 0) {
-                        buff.append(", ");
-                    }
-                    buff.append(orderList.get(i));
+            // the statements of nested unions are appended in a loop,
+            // so that long unions don't need a deep call stack
+            boolean first = true;
+            for (Statement s : getUnionStatements()) {
+                if (!first) {
+                    buff.append(" union ");
+                }
+                first = false;
+                s.appendTo(buff, out);
+                if (out != null) {
+                    out.append(buff);
+                    buff.setLength(0);
                 }
             }
+            appendOrderBy(buff, orderList);
             appendQueryOptions(buff, queryOptions);
             // leave original xpath string as a comment
             appendXPathAsComment(buff, xpathQuery);
-            return buff.toString();
+        }
+
+        @Override
+        public Statement optimize(ConversionLimits limits) {
+            // loop over the left side, so that long unions don't
+            // need a deep call stack
+            UnionStatement u = this;
+            while (true) {
+                u.s2 = u.s2.optimize(limits);
+                if (!(u.s1 instanceof UnionStatement)) {
+                    u.s1 = u.s1.optimize(limits);
+                    return this;
+                }
+                u = (UnionStatement) u.s1;
+            }
+        }
+
+        @Override
+        public boolean isUnion() {
+            return true;
+        }
+
+        @Override
+        public List<Statement> getUnionStatements() {
+            // nested unions are flattened
+            ArrayList<Statement> list = new ArrayList<Statement>();
+            ArrayDeque<Statement> stack = new ArrayDeque<Statement>();
+            stack.push(s2);
+            stack.push(s1);
+            while (!stack.isEmpty()) {
+                Statement s = stack.pop();
+                if (s instanceof UnionStatement && ((UnionStatement) s).isPlain()) {
+                    UnionStatement u = (UnionStatement) s;
+                    stack.push(u.s2);
+                    stack.push(u.s1);
+                } else {
+                    list.add(s);
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * Whether this union only combines the two statements, without
+         * explain, order by, or options.
+         *
+         * @return true if yes
+         */
+        private boolean isPlain() {
+            return !explain && !measure && queryOptions == null &&
+                    (orderList == null || orderList.isEmpty());
         }
         
     }
     
+    private static void appendOrderBy(StringBuilder buff, List<Order> orderList) {
+        if (orderList == null || orderList.isEmpty()) {
+            return;
+        }
+        buff.append(" order by ");
+        for (int i = 0; i < orderList.size(); i++) {
+            if (i > 0) {
+                buff.append(", ");
+            }
+            orderList.get(i).appendTo(buff);
+        }
+    }
+
     private static void appendQueryOptions(StringBuilder buff, QueryOptions queryOptions) {
         if (queryOptions == null) {
             return;
         }
         buff.append(" option(");
-        List<String> optionValues = new ArrayList<>();
+        String sep = "";
         if (queryOptions.traversal != Traversal.DEFAULT) {
-            optionValues.add("traversal " + queryOptions.traversal);
+            buff.append(sep).append("traversal ").append(queryOptions.traversal);
+            sep = ", ";
         }
         if (queryOptions.indexName != null) {
-            optionValues.add("index name [" + queryOptions.indexName + "]");
+            buff.append(sep).append("index name [").append(queryOptions.indexName).append(']');
+            sep = ", ";
         }
         if (queryOptions.indexTag != null) {
-            optionValues.add("index tag [" + queryOptions.indexTag + "]");
+            buff.append(sep).append("index tag [").append(queryOptions.indexTag).append(']');
+            sep = ", ";
         }
         if (queryOptions.offset.isPresent()) {
-            optionValues.add("offset " + queryOptions.offset.get());
+            buff.append(sep).append("offset ").append(optionValue(queryOptions.offset.get(),
+                    queryOptions.offsetSlot, PreparedQuery.LONG));
+            sep = ", ";
         }
         if (queryOptions.limit.isPresent()) {
-            optionValues.add("limit " + queryOptions.limit.get());
+            buff.append(sep).append("limit ").append(optionValue(queryOptions.limit.get(),
+                    queryOptions.limitSlot, PreparedQuery.LONG));
+            sep = ", ";
         }
         if (queryOptions.prefetchCount.isPresent()) {
-            optionValues.add("prefetches " + queryOptions.prefetchCount.get());
+            buff.append(sep).append("prefetches ").append(optionValue(queryOptions.prefetchCount.get(),
+                    queryOptions.prefetchCountSlot, PreparedQuery.INT));
+            sep = ", ";
         }
         if (!queryOptions.prefetch.isEmpty()) {
-            String list = queryOptions.prefetch.stream()
-                    .map(SQL2Parser::escapeStringLiteral)
-                    .collect(Collectors.joining(", "));
-            optionValues.add("prefetch (" + list + ")");
+            buff.append(sep).append("prefetch (");
+            for (int i = 0; i < queryOptions.prefetch.size(); i++) {
+                if (i > 0) {
+                    buff.append(", ");
+                }
+                buff.append(SQL2Parser.escapeStringLiteral(queryOptions.prefetch.get(i)));
+            }
+            buff.append(')');
         }
-        buff.append(String.join(", ", optionValues));
         buff.append(")");
     }
     
+    private static String optionValue(Object value, int slot, char slotType) {
+        return slot < 0 ? String.valueOf(value) : PreparedQuery.marker(slot, slotType);
+    }
+
     private static void appendXPathAsComment(StringBuilder buff, String xpath) {
         if (xpath == null) {
             return;
@@ -246,4 +531,89 @@ public class Statement {
         this.queryOptions = options;
     }
 
+    public boolean isExplain() {
+        return explain;
+    }
+
+    public boolean isMeasure() {
+        return measure;
+    }
+
+    /**
+     * Get the selector that is used in the select column list.
+     *
+     * @return the selector
+     */
+    public Selector getColumnSelector() {
+        return columnSelector;
+    }
+
+    /**
+     * Get the columns, in addition to the path and score. If empty, all
+     * columns ("*") are selected.
+     *
+     * @return the unmodifiable list of columns
+     */
+    public List<Expression> getColumns() {
+        return Collections.unmodifiableList(columnList);
+    }
+
+    /**
+     * Get the selectors, in the order they are joined.
+     *
+     * @return the unmodifiable list of selectors
+     */
+    public List<Selector> getSelectors() {
+        return Collections.unmodifiableList(selectors);
+    }
+
+    /**
+     * Get the where condition.
+     *
+     * @return the condition, or null
+     */
+    public Expression getWhere() {
+        return where;
+    }
+
+    /**
+     * Get the order by list.
+     *
+     * @return the unmodifiable list
+     */
+    public List<Order> getOrderList() {
+        return orderList == null ? Collections.<Order>emptyList() :
+                Collections.unmodifiableList(orderList);
+    }
+
+    /**
+     * Get the query options.
+     *
+     * @return the options, or null if not set
+     */
+    public QueryOptions getQueryOptions() {
+        return queryOptions;
+    }
+
+    /**
+     * Whether this is a union of multiple statements.
+     *
+     * @return true if yes
+     */
+    public boolean isUnion() {
+        return false;
+    }
+
+    /**
+     * Get the statements of a union. For a union, the order by list and
+     * the query options are those of the union, and not of the individual
+     * statements.
+     *
+     * @return the statements, or a list with only this statement if this is
+     *         not a union
+     */
+    public List<Statement> getUnionStatements() {
+        return Collections.singletonList(this);
+    }
+
 }
@@ -1,87 +1,178 @@
 package org.apache.jackrabbit.oak.xpath;
 
-import java.util.Arrays;
-
 /**
  * Simplified XMLChar utility class that provides XML name validation.
  * Only contains the functionality actually used in the codebase.
+ * <p>
+ * The character classes are the ones of XML 1.0 (fifth edition), for all
+ * of Unicode including supplementary characters. The flags of the Basic
+ * Multilingual Plane are stored in a two-level table: pages of 256
+ * characters, where pages with the same content are shared, so that the
+ * tables need less than 1 KB. All supplementary characters up to U+EFFFF
+ * are name start characters.
  */
 public class XMLChar {
 
-    /** Character flags array */
-    private static final byte[] CHARS = new byte[1 << 16];
-
     /** Name start character mask */
     public static final int MASK_NAME_START = 0x04;
 
     /** Name character mask */
     public static final int MASK_NAME = 0x08;
 
-    // Static initialization - only set flags for name start and name characters
+    /**
+     * The ranges (first, last) of name start characters.
+     */
+    private static final int[] NAME_START_RANGES = {
+        ':', ':', 'A', 'Z', '_', '_', 'a', 'z',
+        0xC0, 0xD6, 0xD8, 0xF6, 0xF8, 0x2FF, 0x370, 0x37D,
+        0x37F, 0x1FFF, 0x200C, 0x200D, 0x2070, 0x218F, 0x2C00, 0x2FEF,
+        0x3001, 0xD7FF, 0xF900, 0xFDCF, 0xFDF0, 0xFFFD,
+    };
+
+    /**
+     * The ranges (first, last) of name characters that are not name start
+     * characters.
+     */
+    private static final int[] NAME_RANGES = {
+        '-', '.', '0', '9', 0xB7, 0xB7, 0x300, 0x36F, 0x203F, 0x2040,
+    };
+
+    /** The flags of the ASCII characters */
+    private static final byte[] ASCII = new byte[128];
+
+    /** The page of each block of 256 characters */
+    private static final byte[] PAGE_INDEX = new byte[256];
+
+    /**
+     * The pages: 4 longs with the name start flags, followed by 4 longs with
+     * the name flags.
+     */
+    private static final long[] PAGES;
+
     static {
-        // Basic ASCII letters (A-Z, a-z)
-        Arrays.fill(CHARS, 65, 91, (byte) (MASK_NAME_START | MASK_NAME));   // A-Z
-        Arrays.fill(CHARS, 97, 123, (byte) (MASK_NAME_START | MASK_NAME));  // a-z
-        
-        // Underscore and colon can start names
-        CHARS[95] = (byte) (MASK_NAME_START | MASK_NAME);   // _
-        CHARS[58] = (byte) (MASK_NAME_START | MASK_NAME);   // :
-        
-        // Digits and other characters that can be in names (but not start them)
-        Arrays.fill(CHARS, 48, 58, (byte) MASK_NAME);       // 0-9
-        CHARS[45] = (byte) MASK_NAME;                        // -
-        CHARS[46] = (byte) MASK_NAME;                        // .
-        CHARS[183] = (byte) MASK_NAME;                       // ·
-        
-        // Extended Unicode ranges for international characters
-        // Latin Extended (most common international characters)
-        Arrays.fill(CHARS, 192, 247, (byte) (MASK_NAME_START | MASK_NAME));  // À-ö
-        Arrays.fill(CHARS, 248, 383, (byte) (MASK_NAME_START | MASK_NAME));  // ø-ÿ and extended
-        
-        // Additional combining characters that can appear in names
-        Arrays.fill(CHARS, 768, 838, (byte) MASK_NAME);     // Combining diacritical marks
+        long[] all = new long[256 * 8];
+        for (int i = 0; i < NAME_START_RANGES.length; i += 2) {
+            setRange(all, NAME_START_RANGES[i], NAME_START_RANGES[i + 1], true);
+        }
+        for (int i = 0; i < NAME_RANGES.length; i += 2) {
+            setRange(all, NAME_RANGES[i], NAME_RANGES[i + 1], false);
+        }
+        // share pages with the same content
+        long[] pages = new long[256 * 8];
+        int pageCount = 0;
+        for (int block = 0; block < 256; block++) {
+            int page = 0;
+            while (page < pageCount && !samePage(all, block, pages, page)) {
+                page++;
+            }
+            if (page == pageCount) {
+                System.arraycopy(all, block * 8, pages, page * 8, 8);
+                pageCount++;
+            }
+            PAGE_INDEX[block] = (byte) page;
+        }
+        PAGES = new long[pageCount * 8];
+        System.arraycopy(pages, 0, PAGES, 0, PAGES.length);
+        for (int c = 0; c < 128; c++) {
+            ASCII[c] = (byte) ((isSet(c, 0) ? MASK_NAME_START : 0) |
+                    (isSet(c, 4) ? MASK_NAME : 0));
+        }
+    }
+
+    private static void setRange(long[] all, int first, int last, boolean nameStart) {
+        for (int c = first; c <= last; c++) {
+            int i = ((c >> 8) << 3) + ((c >> 6) & 3);
+            if (nameStart) {
+                all[i] |= 1L << c;
+            }
+            all[i + 4] |= 1L << c;
+        }
+    }
+
+    private static boolean samePage(long[] all, int block, long[] pages, int page) {
+        for (int i = 0; i < 8; i++) {
+            if (all[block * 8 + i] != pages[page * 8 + i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Returns true if the specified character is a valid name start
-     * character as defined by XML 1.0 specification.
+     * Check a flag of a character of the Basic Multilingual Plane.
+     *
+     * @param c the character
+     * @param offset 0 for name start, 4 for name
+     * @return whether the flag is set
+     */
+    private static boolean isSet(int c, int offset) {
+        int page = PAGE_INDEX[c >> 8] & 0xff;
+        return (PAGES[(page << 3) + offset + ((c >> 6) & 3)] & (1L << c)) != 0;
+    }
+
+    /**
+     * Returns true if the specified character (a code point) is a valid
+     * name start character as defined by XML 1.0 specification.
      */
     public static boolean isNameStart(int c) {
-        return c < 0x10000 && (CHARS[c] & MASK_NAME_START) != 0;
+        if (c < 0x80) {
+            return (ASCII[c] & MASK_NAME_START) != 0;
+        } else if (c < 0x10000) {
+            return isSet(c, 0);
+        }
+        return c <= 0xEFFFF;
     }
 
     /**
-     * Returns true if the specified character is a valid name
-     * character as defined by XML 1.0 specification.
+     * Returns true if the specified character (a code point) is a valid
+     * name character as defined by XML 1.0 specification.
      */
     public static boolean isName(int c) {
-        return c < 0x10000 && (CHARS[c] & MASK_NAME) != 0;
+        if (c < 0x80) {
+            return (ASCII[c] & MASK_NAME) != 0;
+        } else if (c < 0x10000) {
+            return isSet(c, 4);
+        }
+        return c <= 0xEFFFF;
     }
 
     /**
      * Check if a string is a valid XML Name.
      * A Name must start with a name start character followed by name characters.
+     * Supplementary characters must be valid surrogate pairs.
      */
     public static boolean isValidName(String name) {
         final int length = name.length();
         if (length == 0) {
             return false;
         }
-        
+
         // First character must be a name start character
-        char ch = name.charAt(0);
+        int ch = name.codePointAt(0);
         if (!isNameStart(ch)) {
             return false;
         }
-        
+
         // Remaining characters must be name characters
-        for (int i = 1; i < length; ++i) {
-            ch = name.charAt(i);
+        int i = Character.charCount(ch);
+        while (i < length) {
+            // fast path for a run of ASCII characters
+            char c = name.charAt(i);
+            while (c < 0x80) {
+                if ((ASCII[c] & MASK_NAME) == 0) {
+                    return false;
+                }
+                if (++i == length) {
+                    return true;
+                }
+                c = name.charAt(i);
+            }
+            ch = name.codePointAt(i);
             if (!isName(ch)) {
                 return false;
             }
+            i += Character.charCount(ch);
         }
         return true;
     }
 }
-
@@ -18,9 +18,17 @@ package org.apache.jackrabbit.oak.xpath;
 
 import java.math.BigDecimal;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import jdk.jfr.FlightRecorder;
 
 import org.apache.jackrabbit.oak.xpath.QueryOptions.Traversal;
 import org.apache.jackrabbit.oak.xpath.Statement.UnionStatement;
@@ -56,35 +64,517 @@ public class XPathToSQL2Converter {
     private static final int KEYWORD = 1, IDENTIFIER = 2, END = 4, VALUE_STRING = 5, VALUE_NUMBER = 6;
     private static final int MINUS = 12, PLUS = 13, OPEN = 14, CLOSE = 15;
 
-    // The query as an array of characters and character types
+    // The character types of ASCII characters
+    private static final byte[] ASCII_TYPES = new byte[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            int type = 0;
+            switch (c) {
+            case '@':
+            case '|':
+            case '/':
+            case '-':
+            case '(':
+            case ')':
+            case '{':
+            case '}':
+            case '*':
+            case ',':
+            case ';':
+            case '+':
+            case '%':
+            case '?':
+            case '$':
+            case '[':
+            case ']':
+                type = CHAR_SPECIAL_1;
+                break;
+            case '!':
+            case '<':
+            case '>':
+            case '=':
+                type = CHAR_SPECIAL_2;
+                break;
+            case '.':
+                type = CHAR_DECIMAL;
+                break;
+            case '\'':
+            case '\"':
+                type = CHAR_STRING;
+                break;
+            case ':':
+            case '_':
+                type = CHAR_NAME;
+                break;
+            default:
+                if (c >= 'a' && c <= 'z') {
+                    type = CHAR_NAME;
+                } else if (c >= 'A' && c <= 'Z') {
+                    type = CHAR_NAME;
+                } else if (c >= '0' && c <= '9') {
+                    type = CHAR_VALUE;
+                } else if (Character.isJavaIdentifierPart(c)) {
+                    type = CHAR_NAME;
+                }
+            }
+            ASCII_TYPES[c] = (byte) type;
+        }
+    }
+
+    // One converter per thread, used by the static convert methods
+    private static final ThreadLocal<XPathToSQL2Converter> CONVERTER =
+            ThreadLocal.withInitial(XPathToSQL2Converter::new);
+
+    // The query
     private String statement;
-    private char[] statementChars;
-    private int[] characterTypes;
 
-    // The current state of the parser
+    // The ranges (start, end) of the query that are read, in this order.
+    // Normally this is the whole query; for each alternative of a union,
+    // it is the part before the alternatives, the alternative, and the
+    // part after the alternatives.
+    private int[] segments;
+    // The range of the whole query, reused for each query
+    private final int[] wholeQuery = new int[2];
+    private int segmentIndex;
+    private int segmentEnd;
+
+    // The current state of the parser. The current token is the range
+    // (currentTokenStart, parseIndex) of the statement; the string is only
+    // created when needed.
     private int parseIndex;
     private int currentTokenType;
     private String currentToken;
     private boolean currentTokenQuoted;
-    private ArrayList<String> expected;
-    private Selector currentSelector = new Selector();
-    private ArrayList<Selector> selectors = new ArrayList<Selector>();
+    private int currentTokenStart;
+    // for string values: whether the value contains escaped quotes
+    private boolean currentTokenEscaped;
+    // for number values: the value, if it is an integer, otherwise -1
+    private long currentTokenNumber;
+    // The expected tokens, for the error message. They are only collected
+    // in diagnostic mode, that is when parsing again after an error.
+    private final ArrayList<String> expected = new ArrayList<String>();
+    private boolean diagnostic;
+    private Selector currentSelector;
+    private ArrayList<Selector> selectors;
+
+    // When preparing a template: literals are replaced with slot markers
+    private boolean prepare;
+    private int[] literalStarts;
+    private int currentTokenSlot;
+
+    private ConversionLimits limits = ConversionLimits.DEFAULT;
+
+    private final QueryFingerprint fingerprint = new QueryFingerprint();
+
+    // The statistics of the current conversion, for monitoring
+    private int tokenCount;
+    private int unionDepth;
+    private long tokenizeTime, parseTime, unionTime, optimizeTime, renderTime;
+
+    /**
+     * Convert the query to SQL2, using a converter that is bound to the
+     * current thread. This method is thread-safe; the parser state is reused
+     * for subsequent calls from the same thread.
+     *
+     * @param query the query string
+     * @return the SQL2 query
+     * @throws ParseException if parsing fails
+     */
+    public static String toSQL2(String query) throws ParseException {
+        return CONVERTER.get().convert(query);
+    }
+
+    /**
+     * Convert the query, using a converter that is bound to the current
+     * thread. The result contains the statement tree and the SQL2 query.
+     * This method is thread-safe.
+     *
+     * @param query the query string
+     * @return the converted query
+     * @throws ParseException if parsing fails
+     */
+    public static ConvertedQuery toConvertedQuery(String query) throws ParseException {
+        return CONVERTER.get().convertToQuery(query);
+    }
+
+    /**
+     * Convert a batch of queries in parallel, using the common fork-join
+     * pool. Errors are captured per query and don't abort the batch.
+     *
+     * @param queries the queries
+     * @return the results, in the same order as the queries
+     */
+    public static List<ConversionResult> convertAll(List<String> queries) {
+        return convertAll(queries, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Convert a batch of queries in parallel. Each worker thread uses its own
+     * converter. Errors are captured per query and don't abort the batch.
+     *
+     * @param queries the queries
+     * @param pool the pool to use
+     * @return the results, in the same order as the queries
+     */
+    public static List<ConversionResult> convertAll(List<String> queries, ForkJoinPool pool) {
+        String[] q = queries.toArray(new String[0]);
+        ConversionResult[] results = new ConversionResult[q.length];
+        if (q.length > 0) {
+            // about 8 tasks per thread, so that the work is balanced
+            int batchSize = Math.max(1, q.length / (8 * pool.getParallelism()));
+            pool.invoke(new BatchTask(q, results, 0, q.length, batchSize));
+        }
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * Convert one query, and capture the error if converting fails.
+     *
+     * @param query the query
+     * @return the result
+     */
+    ConversionResult convertOrError(String query) {
+        try {
+            return new ConversionResult(query, convert(query), null);
+        } catch (Exception e) {
+            return new ConversionResult(query, null, e);
+        }
+    }
+
+    /**
+     * Set the limits on the complexity of queries. Queries that exceed the
+     * limits are rejected before they are parsed.
+     *
+     * @param limits the limits
+     */
+    public void setLimits(ConversionLimits limits) {
+        this.limits = limits;
+    }
+
+    public ConversionLimits getLimits() {
+        return limits;
+    }
 
     /**
-     * Convert the query to SQL2.
+     * Get the converter that is bound to the current thread.
+     *
+     * @return the converter
+     */
+    static XPathToSQL2Converter getConverter() {
+        return CONVERTER.get();
+    }
+
+    /**
+     * Convert the query to SQL2. A converter instance can be used for
+     * multiple queries, but not concurrently by multiple threads.
      *
      * @param query the query string
      * @return the SQL2 query
      * @throws ParseException if parsing fails
      */
     public String convert(String query) throws ParseException {
-        Statement statement = convertToStatement(query);
-        // statement = statement.optimize();
-        return statement.toString();
+        StringBuilder buff = new StringBuilder();
+        convert(query, buff);
+        return buff.toString();
+    }
+
+    /**
+     * Convert the query. The result contains the statement tree and the SQL2
+     * query.
+     *
+     * @param query the query string
+     * @return the converted query
+     * @throws ParseException if parsing fails
+     */
+    public ConvertedQuery convertToQuery(String query) throws ParseException {
+        ConversionEvent event = newEvent();
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        Statement statement = null;
+        String error = null;
+        try {
+            statement = parse(query);
+        } catch (ParseException | RuntimeException e) {
+            error = e.getMessage();
+            throw e;
+        } finally {
+            // the SQL2 query is rendered later
+            renderTime = 0;
+            record(event, query, start, statement, error);
+        }
+        return new ConvertedQuery(query, statement);
+    }
+
+    /**
+     * Convert the query to SQL2, and append the result to the buffer. This
+     * allows to reuse the buffer for multiple queries.
+     *
+     * @param query the query string
+     * @param buff the target buffer
+     * @throws ParseException if parsing fails
+     */
+    public void convert(String query, StringBuilder buff) throws ParseException {
+        ConversionEvent event = newEvent();
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        Statement statement = null;
+        String error = null;
+        renderTime = 0;
+        try {
+            statement = parse(query);
+            long renderStart = System.nanoTime();
+            statement.appendTo(buff);
+            renderTime = System.nanoTime() - renderStart;
+        } catch (ParseException | RuntimeException e) {
+            error = e.getMessage();
+            throw e;
+        } finally {
+            record(event, query, start, statement, error);
+        }
+    }
+
+    /**
+     * Create a flight recorder event, if the flight recorder is initialized.
+     * Initializing the event class registers the event type, which takes a
+     * few hundred milliseconds; this is avoided for short-lived processes
+     * that don't record.
+     *
+     * @return the event, or null
+     */
+    private static ConversionEvent newEvent() {
+        return FlightRecorder.isInitialized() ? new ConversionEvent() : null;
+    }
+
+    /**
+     * Record the statistics of a conversion, as a flight recorder event, and
+     * in the slow conversion log if it took long.
+     *
+     * @param event the event, or null if the flight recorder is not used
+     * @param query the query
+     * @param start the start time, in nanoseconds
+     * @param statement the statement, or null if parsing failed
+     * @param error the error message, or null
+     */
+    private void record(ConversionEvent event, String query, long start,
+            Statement statement, String error) {
+        long time = System.nanoTime() - start;
+        SlowConversionLog slowLog = SlowConversionLog.getInstance();
+        boolean slow = slowLog.isSlow(time);
+        boolean commit = event != null && event.shouldCommit();
+        if (!slow && !commit) {
+            return;
+        }
+        int selectorCount = 0, unionBranchCount = 0;
+        if (statement != null) {
+            ArrayDeque<Statement> stack = new ArrayDeque<Statement>();
+            stack.push(statement);
+            while (!stack.isEmpty()) {
+                Statement s = stack.pop();
+                if (s.isUnion()) {
+                    for (Statement u : s.getUnionStatements()) {
+                        stack.push(u);
+                    }
+                } else {
+                    unionBranchCount++;
+                    selectorCount += s.getSelectors().size();
+                }
+            }
+        }
+        if (commit) {
+            event.query = query;
+            event.tokenizeTime = tokenizeTime;
+            event.parseTime = parseTime;
+            event.unionTime = unionTime;
+            event.optimizeTime = optimizeTime;
+            event.renderTime = renderTime;
+            event.tokenCount = tokenCount;
+            event.selectorCount = selectorCount;
+            event.unionBranchCount = unionBranchCount;
+            event.error = error;
+            event.commit();
+        }
+        if (slow) {
+            slowLog.add(new SlowConversionLog.Entry(System.currentTimeMillis(),
+                    String.valueOf(query), time, tokenizeTime, parseTime, unionTime,
+                    optimizeTime, renderTime, tokenCount, selectorCount,
+                    unionBranchCount, error));
+        }
+    }
+
+    /**
+     * Reset the parser state, so that the converter can be used for the next
+     * query.
+     */
+    private void reset() {
+        statement = null;
+        segments = null;
+        segmentIndex = 0;
+        segmentEnd = 0;
+        parseIndex = 0;
+        currentTokenType = 0;
+        currentToken = null;
+        currentTokenQuoted = false;
+        expected.clear();
+        literalStarts = null;
+        currentTokenSlot = -1;
+        currentSelector = new Selector();
+        // the list is passed to the statement, so it can't be reused
+        selectors = new ArrayList<Selector>();
+    }
+
+    /**
+     * Read the shape of the query, that is the query where the literals are
+     * replaced with placeholders, and the literal values. Only the tokenizer
+     * is used.
+     *
+     * @param query the query
+     * @return the shape
+     * @throws ParseException if tokenizing fails
+     */
+    PreparedQuery.Shape readShape(String query) throws ParseException {
+        reset();
+        query = query.trim();
+        initialize(query);
+        StringBuilder key = new StringBuilder(query.length());
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        StringBuilder types = new StringBuilder();
+        ArrayList<String> values = new ArrayList<String>();
+        int last = 0;
+        for (read(); currentTokenType != END; read()) {
+            if (currentTokenType == VALUE_STRING || currentTokenType == VALUE_NUMBER) {
+                key.append(query, last, currentTokenStart);
+                offsets.add(key.length());
+                if (currentTokenType == VALUE_STRING) {
+                    key.append(PreparedQuery.MARKER);
+                    types.append(PreparedQuery.STRING);
+                } else {
+                    key.append(PreparedQuery.NAME_MARKER);
+                    types.append(PreparedQuery.NUMBER);
+                }
+                values.add(currentToken());
+                last = parseIndex;
+            }
+        }
+        key.append(query, last, query.length());
+        int[] o = new int[offsets.size()];
+        for (int i = 0; i < o.length; i++) {
+            o[i] = offsets.get(i);
+        }
+        return new PreparedQuery.Shape(key.toString(), o,
+                types.toString().toCharArray(), values);
+    }
+
+    /**
+     * Get the fingerprint of the query. Only the tokenizer is used.
+     *
+     * @param query the query
+     * @return the fingerprint
+     * @throws ParseException if tokenizing fails
+     */
+    long fingerprint(String query) throws ParseException {
+        initialize(query);
+        QueryFingerprint f = fingerprint;
+        f.reset(false);
+        try {
+            for (readToken(); currentTokenType != END; readToken()) {
+                switch (currentTokenType) {
+                case VALUE_STRING:
+                case VALUE_NUMBER:
+                    f.literal();
+                    break;
+                case MINUS:
+                    f.minus();
+                    break;
+                default:
+                    if (parseIndex - currentTokenStart == 1 &&
+                            statement.charAt(currentTokenStart) == ',') {
+                        f.comma();
+                    } else {
+                        f.token(statement, currentTokenStart, parseIndex,
+                                currentTokenType, false);
+                    }
+                }
+            }
+            return f.get();
+        } finally {
+            statement = null;
+        }
+    }
+
+    /**
+     * Prepare a query, that is convert it to a template where the literals
+     * are slots.
+     *
+     * @param query the query
+     * @return the prepared query
+     * @throws ParseException if parsing fails
+     */
+    PreparedQuery prepare(String query) throws ParseException {
+        PreparedQuery.Shape shape = readShape(query);
+        String sql2 = convert(query);
+        if (query.indexOf(PreparedQuery.MARKER) >= 0 ||
+                query.indexOf(PreparedQuery.NAME_MARKER) >= 0) {
+            return PreparedQuery.create(shape, null);
+        }
+        String template;
+        prepare = true;
+        try {
+            Statement statement = convertToStatement(query);
+            template = statement.toString();
+        } finally {
+            prepare = false;
+        }
+        PreparedQuery result = PreparedQuery.create(shape, template);
+        if (!sql2.equals(result.bindOrNull(shape.values))) {
+            // the result depends on the literal values in some other way
+            result = PreparedQuery.create(shape, null);
+        }
+        return result;
+    }
+
+    /**
+     * Parse the query. If parsing fails, the query is parsed again in
+     * diagnostic mode, to get the list of expected tokens for the error
+     * message. That way, valid queries don't pay for it.
+     *
+     * @param query the query
+     * @return the statement
+     * @throws ParseException if parsing fails
+     */
+    private Statement parse(String query) throws ParseException {
+        long start = System.nanoTime();
+        tokenCount = 0;
+        unionDepth = 0;
+        tokenizeTime = 0;
+        unionTime = 0;
+        optimizeTime = 0;
+        try {
+            return convertToStatement(query);
+        } catch (ParseException e) {
+            if (diagnostic) {
+                throw e;
+            }
+            diagnostic = true;
+            try {
+                convertToStatement(query);
+            } finally {
+                diagnostic = false;
+            }
+            // parsing again didn't fail (which is unexpected)
+            throw e;
+        } finally {
+            parseTime = System.nanoTime() - start - tokenizeTime - unionTime - optimizeTime;
+        }
     }
 
     private Statement convertToStatement(String query) throws ParseException {
 
+        reset();
         query = query.trim();
 
         Statement statement = new Statement();
@@ -105,9 +595,29 @@ public class XPathToSQL2Converter {
 
         statement.setOriginalQuery(query);
 
+        long time = System.nanoTime();
+        limits.check(query);
         initialize(query);
+        if (prepare) {
+            literalStarts = readLiteralStarts();
+        }
+        tokenizeTime += System.nanoTime() - time;
+        statement = parseStatement(statement);
+        time = System.nanoTime();
+        statement = statement.optimize(limits);
+        optimizeTime += System.nanoTime() - time;
+        return statement;
+    }
+
+    /**
+     * Parse the statement, starting at the current position.
+     *
+     * @param statement the statement to add the columns and so on to
+     * @return the statement, or a union statement
+     * @throws ParseException if parsing fails
+     */
+    private Statement parseStatement(Statement statement) throws ParseException {
 
-        expected = new ArrayList<String>();
         read();
 
         if (currentTokenType == END) {
@@ -116,7 +626,6 @@ public class XPathToSQL2Converter {
 
         currentSelector.name = "a";
 
-        String pathPattern = "";
         boolean startOfQuery = true;
 
         while (true) {
@@ -128,37 +637,32 @@ public class XPathToSQL2Converter {
             if (!slash) {
                 if (startOfQuery) {
                     // the query doesn't start with "/"
-                    currentSelector.path = "/";
-                    pathPattern = "/";
+                    currentSelector.path = NodePath.ROOT;
                     currentSelector.isChild = true;
                 } else {
                     break;
                 }
             } else if (readIf("jcr:root")) {
                 // "/jcr:root" may only appear at the beginning
-                if (!pathPattern.isEmpty()) {
+                if (!startOfQuery) {
                     throw getSyntaxError("jcr:root needs to be at the beginning");
                 }
                 if (readIf("/")) {
                     // "/jcr:root/"
-                    currentSelector.path = "/";
-                    pathPattern = "/";
+                    currentSelector.path = NodePath.ROOT;
                     if (readIf("/")) {
                         // "/jcr:root//"
-                        pathPattern = "//";
                         currentSelector.isDescendant = true;
                     } else {
                         currentSelector.isChild = true;
                     }
                 } else {
                     // for example "/jcr:root[condition]"
-                    pathPattern = "/%";
-                    currentSelector.path = "/";
+                    currentSelector.path = NodePath.ROOT;
                     shortcut = true;
                 }
             } else if (readIf("/")) {
                 // "//" was read
-                pathPattern += "%";
                 if (currentSelector.isDescendant) {
                     // the query started with "//", and now "//" was read
                     nextSelector(true);
@@ -166,9 +670,8 @@ public class XPathToSQL2Converter {
                 currentSelector.isDescendant = true;
             } else {
                 // the token "/" was read
-                pathPattern += "/";
                 if (startOfQuery) {
-                    currentSelector.path = "/";
+                    currentSelector.path = NodePath.ROOT;
                 } else {
                     if (currentSelector.isDescendant) {
                         // the query started with "//", and now "/" was read
@@ -177,16 +680,17 @@ public class XPathToSQL2Converter {
                     currentSelector.isChild = true;
                 }
             }
-            int startParseIndex = parseIndex;
+            // the position of the first token of this step
+            int stepStart = currentTokenStart;
+            int stepSegment = segmentIndex;
             if (shortcut) {
                 // "*" and so on are not allowed now
             } else if (readIf("*")) {
                 // "...*"
-                pathPattern += "%";
                 if (!currentSelector.isDescendant) {
-                    if (selectors.size() == 0 && currentSelector.path.equals("")) {
+                    if (selectors.size() == 0 && currentSelector.path.isEmpty()) {
                         // the query /* is special
-                        currentSelector.path = "/";
+                        currentSelector.path = NodePath.ROOT;
                     }
                 }
             } else if (currentTokenType == IDENTIFIER) {
@@ -197,25 +701,21 @@ public class XPathToSQL2Converter {
                     if ("text".equals(identifier)) {
                         // "...text()"
                         currentSelector.isChild = false;
-                        pathPattern += "jcr:xmltext";
                         read(")");
                         if (currentSelector.isDescendant) {
                             currentSelector.nodeName = "jcr:xmltext";
                         } else {
-                            currentSelector.path = PathUtils.concat(currentSelector.path, "jcr:xmltext");
+                            currentSelector.path = currentSelector.path.concat("jcr:xmltext");
                         }
                     } else if ("element".equals(identifier)) {
                         // "...element(..."
                         if (readIf(")")) {
                             // any
-                            pathPattern += "%";
                         } else {
                             if (readIf("*")) {
                                 // any
-                                pathPattern += "%";
                             } else {
                                 String name = readPathSegment();
-                                pathPattern += name;
                                 appendNodeName(name);
                             }
                             if (readIf(",")) {
@@ -253,7 +753,6 @@ public class XPathToSQL2Converter {
                     }
                 } else {
                     String name = ISO9075.decode(identifier);
-                    pathPattern += name;
                     appendNodeName(name);
                 }
             } else if (readIf("@")) {
@@ -317,7 +816,7 @@ public class XPathToSQL2Converter {
                     }
                 } while (readIf("|"));
                 if (!readIf(")")) {
-                    return convertToUnion(query, statement, startParseIndex - 1);
+                    return convertToUnion(statement, stepStart, stepSegment);
                 }
             } else if (readIf(".")) {
                 // just "." this is simply ignored, so that
@@ -326,7 +825,6 @@ public class XPathToSQL2Converter {
                     // ".." means "the parent of the node"
                     // handle like a regular path restriction
                     String name = "..";
-                    pathPattern += name;
                     if (!currentSelector.isChild) {
                         currentSelector.nodeName = name;
                     } else {
@@ -392,10 +890,13 @@ public class XPathToSQL2Converter {
                         options.indexTag = readIdentifier();
                     }
                 } else if (readIf("offset")) {
+                    options.offsetSlot = currentTokenSlot;
                     options.offset = Optional.of(readNumber());
                 } else if (readIf("limit")) {
+                    options.limitSlot = currentTokenSlot;
                     options.limit = Optional.of(readNumber());
                 } else if (readIf("prefetches")) {
+                    options.prefetchCountSlot = currentTokenSlot;
                     options.prefetchCount = Optional.of((int) readNumber());
                 } else if (readIf("prefetch")) {
                     read("(");
@@ -413,7 +914,7 @@ public class XPathToSQL2Converter {
             }
             read(")");
         }
-        if (!currentToken.isEmpty()) {
+        if (!currentToken().isEmpty()) {
             throw getSyntaxError("<end>");
         }
         statement.setColumnSelector(currentSelector);
@@ -438,9 +939,8 @@ public class XPathToSQL2Converter {
                 currentSelector.nodeName = name;
             } else {
                 currentSelector.isChild = false;
-                String oldPath = currentSelector.path;
                 // further extending the path
-                currentSelector.path = PathUtils.concat(oldPath, name);
+                currentSelector.path = currentSelector.path.concat(name);
             }
         }
     }
@@ -457,14 +957,14 @@ public class XPathToSQL2Converter {
             // prevent (join) conditions are added again
             currentSelector.isChild = false;
             currentSelector.isDescendant = false;
-            currentSelector.path = "";
+            currentSelector.path = NodePath.EMPTY;
             currentSelector.nodeName = null;
         }
     }
 
     private void nextSelector(boolean force) throws ParseException {
         boolean isFirstSelector = selectors.size() == 0;
-        String path = currentSelector.path;
+        NodePath path = currentSelector.path;
         Expression condition = currentSelector.condition;
         Expression joinCondition = null;
         if (currentSelector.nodeName != null) {
@@ -481,12 +981,12 @@ public class XPathToSQL2Converter {
         if (currentSelector.isDescendant) {
             if (isFirstSelector) {
                 if (!path.isEmpty()) {
-                    if (!PathUtils.isAbsolute(path)) {
-                        path = PathUtils.concat("/", path);
+                    if (!path.isAbsolute()) {
+                        path = NodePath.ROOT.concat(path);
                     }
                     Expression.Function c = new Expression.Function("isdescendantnode");
                     c.params.add(new Expression.SelectorExpr(currentSelector));
-                    c.params.add(Expression.Literal.newString(path));
+                    c.params.add(Expression.Literal.newString(path.toString()));
                     condition = Expression.and(condition, c);
                 }
             } else {
@@ -507,12 +1007,12 @@ public class XPathToSQL2Converter {
         } else if (currentSelector.isChild) {
             if (isFirstSelector) {
                 if (!path.isEmpty()) {
-                    if (!PathUtils.isAbsolute(path)) {
-                        path = PathUtils.concat("/", path);
+                    if (!path.isAbsolute()) {
+                        path = NodePath.ROOT.concat(path);
                     }
                     Expression.Function c = new Expression.Function("ischildnode");
                     c.params.add(new Expression.SelectorExpr(currentSelector));
-                    c.params.add(Expression.Literal.newString(path));
+                    c.params.add(Expression.Literal.newString(path.toString()));
                     condition = Expression.and(condition, c);
                 }
             } else {
@@ -525,10 +1025,10 @@ public class XPathToSQL2Converter {
             if (!force && condition == null && joinCondition == null) {
                 // a child node of a given path, such as "/test"
                 // use the same selector for now, and extend the path
-            } else if (PathUtils.isAbsolute(path)) {
+            } else if (path.isAbsolute()) {
                 Expression.Function c = new Expression.Function("issamenode");
                 c.params.add(new Expression.SelectorExpr(currentSelector));
-                c.params.add(Expression.Literal.newString(path));
+                c.params.add(Expression.Literal.newString(path.toString()));
                 condition = Expression.and(condition, c);
             }
         }
@@ -548,22 +1048,28 @@ public class XPathToSQL2Converter {
 
     private Expression parseConstraint() throws ParseException {
         Expression a = parseAnd();
-        int i = 0;
-        while (readIf("or")) {
-            a = new Expression.OrCondition(a, parseAnd());
-            if (++i % 100 == 0) {
-                a = a.optimize();
-            }
+        if (!readIf("or")) {
+            return a;
         }
-        return a.optimize();
+        ArrayList<Expression> list = new ArrayList<Expression>();
+        list.add(a);
+        do {
+            list.add(parseAnd());
+        } while (readIf("or"));
+        return new Expression.OrCondition(list).optimize();
     }
 
     private Expression parseAnd() throws ParseException {
         Expression a = parseCondition();
-        while (readIf("and")) {
-            a = new Expression.AndCondition(a, parseCondition());
+        if (!readIf("and")) {
+            return a;
         }
-        return a.optimize();
+        ArrayList<Expression> list = new ArrayList<Expression>();
+        list.add(a);
+        do {
+            list.add(parseCondition());
+        } while (readIf("and"));
+        return new Expression.AndCondition(list).optimize();
     }
 
     private Expression parseCondition() throws ParseException {
@@ -636,18 +1142,18 @@ public class XPathToSQL2Converter {
         } else if (readIf("$")) {
             return Expression.Literal.newBindVariable(readIdentifier());
         } else if (currentTokenType == VALUE_NUMBER) {
-            Expression.Literal l = Expression.Literal.newNumber(currentToken);
+            Expression.Literal l = Expression.Literal.newNumber(currentToken());
             read();
             return l;
         } else if (currentTokenType == VALUE_STRING) {
-            Expression.Literal l = Expression.Literal.newString(currentToken);
+            Expression.Literal l = Expression.Literal.newString(currentToken());
             read();
             return l;
         } else if (readIf("-")) {
             if (currentTokenType != VALUE_NUMBER) {
                 throw getSyntaxError();
             }
-            Expression.Literal l = Expression.Literal.newNumber('-' + currentToken);
+            Expression.Literal l = Expression.Literal.newNumber('-' + currentToken());
             read();
             return l;
         } else if (readIf("+")) {
@@ -828,7 +1334,7 @@ public class XPathToSQL2Converter {
     }
 
     private boolean isToken(String token) {
-        boolean result = token.equals(currentToken) && !currentTokenQuoted;
+        boolean result = !currentTokenQuoted && currentTokenEquals(token);
         if (result) {
             return true;
         }
@@ -836,22 +1342,44 @@ public class XPathToSQL2Converter {
         return false;
     }
 
+    /**
+     * Check whether the text of the current token matches, without creating
+     * a string.
+     *
+     * @param token the token
+     * @return true if it matches
+     */
+    private boolean currentTokenEquals(String token) {
+        int len = token.length();
+        return parseIndex - currentTokenStart == len &&
+                currentTokenType != END &&
+                statement.regionMatches(currentTokenStart, token, 0, len);
+    }
+
     private void read(String expected) throws ParseException {
-        if (!expected.equals(currentToken) || currentTokenQuoted) {
+        if (currentTokenQuoted || !currentTokenEquals(expected)) {
             throw getSyntaxError(expected);
         }
         read();
     }
 
     private long readNumber() throws ParseException {
+        if (currentTokenType == VALUE_NUMBER && currentTokenSlot >= 0) {
+            // a template slot: the value is set when binding
+            read();
+            return 0;
+        }
         if (currentTokenType == VALUE_NUMBER) {
-            try {
-                long l = Long.parseLong(currentToken);
-                read();
-                return l;
-            } catch (NumberFormatException nfe) {
-                throw getSyntaxError("[0-9]");
+            long l = currentTokenNumber;
+            if (l < 0) {
+                try {
+                    l = Long.parseLong(currentToken());
+                } catch (NumberFormatException nfe) {
+                    throw getSyntaxError("[0-9]");
+                }
             }
+            read();
+            return l;
         } else {
             throw getSyntaxError("[0-9]");
         }
@@ -861,7 +1389,7 @@ public class XPathToSQL2Converter {
         if (currentTokenType != VALUE_STRING) {
             throw getSyntaxError("string value");
         }
-        String result = currentToken;
+        String result = currentToken();
         read();
         return result;
     }
@@ -897,156 +1425,203 @@ public class XPathToSQL2Converter {
         if (currentTokenType != IDENTIFIER) {
             throw getSyntaxError("identifier");
         }
-        String s = currentToken;
+        String s = currentToken();
         read();
         return s;
     }
 
     private void addExpected(String token) {
-        if (expected != null) {
+        if (diagnostic) {
             expected.add(token);
         }
     }
 
+    /**
+     * Get the current token as a string. For string values, this is the
+     * unescaped value; for integer values, the normalized number.
+     *
+     * @return the token
+     */
+    private String currentToken() {
+        String t = currentToken;
+        if (t == null) {
+            switch (currentTokenType) {
+            case END:
+                t = "";
+                break;
+            case VALUE_STRING:
+                // without the quotes
+                t = statement.substring(currentTokenStart + 1, parseIndex - 1);
+                if (currentTokenEscaped) {
+                    char quote = statement.charAt(currentTokenStart);
+                    t = quote == '\'' ? t.replace("''", "'") : t.replace("\"\"", "\"");
+                }
+                break;
+            case VALUE_NUMBER:
+                if (currentTokenNumber >= 0) {
+                    t = String.valueOf(currentTokenNumber);
+                    break;
+                }
+                t = statement.substring(currentTokenStart, parseIndex);
+                break;
+            default:
+                t = statement.substring(currentTokenStart, parseIndex);
+            }
+            currentToken = t;
+        }
+        return t;
+    }
+
     private void initialize(String query) throws ParseException {
         if (query == null) {
             query = "";
         }
         statement = query;
-        int len = query.length() + 1;
-        char[] command = new char[len];
-        int[] types = new int[len];
-        len--;
-        query.getChars(0, len, command, 0);
-        command[len] = ' ';
-        int startLoop = 0;
+        int len = query.length();
+        wholeQuery[1] = len;
+        setSegments(wholeQuery);
+        // check that all strings are terminated
         for (int i = 0; i < len; i++) {
-            char c = command[i];
-            int type = 0;
-            switch (c) {
-            case '@':
-            case '|':
-            case '/':
-            case '-':
-            case '(':
-            case ')':
-            case '{':
-            case '}':
-            case '*':
-            case ',':
-            case ';':
-            case '+':
-            case '%':
-            case '?':
-            case '$':
-            case '[':
-            case ']':
-                type = CHAR_SPECIAL_1;
-                break;
-            case '!':
-            case '<':
-            case '>':
-            case '=':
-                type = CHAR_SPECIAL_2;
-                break;
-            case '.':
-                type = CHAR_DECIMAL;
-                break;
-            case '\'':
-                type = CHAR_STRING;
-                types[i] = CHAR_STRING;
-                startLoop = i;
-                while (command[++i] != '\'') {
-                    checkRunOver(i, len, startLoop);
-                }
-                break;
-            case '\"':
-                type = CHAR_STRING;
-                types[i] = CHAR_STRING;
-                startLoop = i;
-                while (command[++i] != '\"') {
-                    checkRunOver(i, len, startLoop);
+            char c = query.charAt(i);
+            if (c == '\'' || c == '\"') {
+                int end = query.indexOf(c, i + 1);
+                if (end < 0) {
+                    parseIndex = i;
+                    throw getSyntaxError();
                 }
-                break;
-            case ':':
-            case '_':
-                type = CHAR_NAME;
-                break;
-            default:
-                if (c >= 'a' && c <= 'z') {
-                    type = CHAR_NAME;
-                } else if (c >= 'A' && c <= 'Z') {
-                    type = CHAR_NAME;
-                } else if (c >= '0' && c <= '9') {
-                    type = CHAR_VALUE;
-                } else {
-                    if (Character.isJavaIdentifierPart(c)) {
-                        type = CHAR_NAME;
-                    }
+                i = end;
+            }
+        }
+    }
+
+    /**
+     * Set the ranges of the query to read, and go to the start.
+     *
+     * @param segments the list of ranges (start, end)
+     */
+    private void setSegments(int[] segments) {
+        this.segments = segments;
+        segmentIndex = 0;
+        segmentEnd = segments[1];
+        parseIndex = segments[0];
+    }
+
+    /**
+     * Get the start positions of all literals, in the order they appear in
+     * the query. In prepare mode, this is used to number the slots, as
+     * literals can be read multiple times (in unions).
+     *
+     * @return the start positions
+     */
+    private int[] readLiteralStarts() throws ParseException {
+        int[] list = new int[8];
+        int count = 0;
+        for (readToken(); currentTokenType != END; readToken()) {
+            if (currentTokenType == VALUE_STRING || currentTokenType == VALUE_NUMBER) {
+                if (count == list.length) {
+                    list = Arrays.copyOf(list, count * 2);
                 }
+                list[count++] = currentTokenStart;
             }
-            types[i] = (byte) type;
         }
-        statementChars = command;
-        types[len] = CHAR_END;
-        characterTypes = types;
-        parseIndex = 0;
+        setSegments(segments);
+        return Arrays.copyOf(list, count);
     }
 
-    private void checkRunOver(int i, int len, int startLoop) throws ParseException {
-        if (i >= len) {
-            parseIndex = startLoop;
-            throw getSyntaxError();
+    /**
+     * Get the type of the character at the given position.
+     *
+     * @param i the index
+     * @return the character type, or CHAR_END
+     */
+    private int charType(int i) {
+        if (i >= segmentEnd) {
+            return CHAR_END;
         }
+        char c = statement.charAt(i);
+        if (c < 128) {
+            return ASCII_TYPES[c];
+        }
+        return Character.isJavaIdentifierPart(c) ? CHAR_NAME : 0;
+    }
+
+    /**
+     * Get the character at the given position, or a space if past the end.
+     *
+     * @param i the index
+     * @return the character
+     */
+    private char charAt(int i) {
+        return i < segmentEnd ? statement.charAt(i) : ' ';
     }
 
     private void read() throws ParseException {
+        readToken();
+        if (prepare) {
+            if (currentTokenType == VALUE_STRING) {
+                currentTokenSlot = Arrays.binarySearch(literalStarts, currentTokenStart);
+                currentToken = PreparedQuery.marker(currentTokenSlot, PreparedQuery.STRING);
+            } else if (currentTokenType == VALUE_NUMBER) {
+                currentTokenSlot = Arrays.binarySearch(literalStarts, currentTokenStart);
+                currentToken = PreparedQuery.marker(currentTokenSlot, PreparedQuery.NUMBER);
+            } else {
+                currentTokenSlot = -1;
+            }
+        }
+    }
+
+    private void readToken() throws ParseException {
+        tokenCount++;
         currentTokenQuoted = false;
-        if (expected != null) {
+        currentToken = null;
+        if (diagnostic) {
             expected.clear();
         }
-        int[] types = characterTypes;
         int i = parseIndex;
-        int type = types[i];
-        while (type == 0) {
-            type = types[++i];
+        int type = charType(i);
+        while (true) {
+            if (type == 0) {
+                type = charType(++i);
+            } else if (type == CHAR_END && segmentIndex + 2 < segments.length) {
+                // continue with the next range
+                segmentIndex += 2;
+                i = segments[segmentIndex];
+                segmentEnd = segments[segmentIndex + 1];
+                type = charType(i);
+            } else {
+                break;
+            }
         }
         int start = i;
-        char[] chars = statementChars;
-        char c = chars[i++];
-        currentToken = "";
+        currentTokenStart = start;
+        char c = charAt(i++);
         switch (type) {
         case CHAR_NAME:
             while (true) {
-                type = types[i];
+                type = charType(i);
                 // the '-' can be part of a name,
                 // for example in "fn:lower-case"
                 // the '.' can be part of a name,
                 // for example in "@offloading.status"
-                if (type != CHAR_NAME && type != CHAR_VALUE
-                        && chars[i] != '-'
-                        && chars[i] != '.') {
-                    break;
+                if (type != CHAR_NAME && type != CHAR_VALUE) {
+                    c = charAt(i);
+                    if (c != '-' && c != '.') {
+                        break;
+                    }
                 }
                 i++;
             }
-            currentToken = statement.substring(start, i);
-            if (currentToken.isEmpty()) {
-                throw getSyntaxError();
-            }
             currentTokenType = IDENTIFIER;
             parseIndex = i;
             return;
         case CHAR_SPECIAL_2:
-            if (types[i] == CHAR_SPECIAL_2) {
+            if (charType(i) == CHAR_SPECIAL_2) {
                 i++;
             }
-            currentToken = statement.substring(start, i);
             currentTokenType = KEYWORD;
             parseIndex = i;
             break;
         case CHAR_SPECIAL_1:
-            currentToken = statement.substring(start, i);
             switch (c) {
             case '+':
                 currentTokenType = PLUS;
@@ -1068,7 +1643,7 @@ public class XPathToSQL2Converter {
         case CHAR_VALUE:
             long number = c - '0';
             while (true) {
-                c = chars[i];
+                c = charAt(i);
                 if (c < '0' || c > '9') {
                     if (c == '.') {
                         readDecimal(start, i);
@@ -1079,7 +1654,7 @@ public class XPathToSQL2Converter {
                         break;
                     }
                     currentTokenType = VALUE_NUMBER;
-                    currentToken = String.valueOf(number);
+                    currentTokenNumber = number;
                     parseIndex = i;
                     break;
                 }
@@ -1092,9 +1667,8 @@ public class XPathToSQL2Converter {
             }
             return;
         case CHAR_DECIMAL:
-            if (types[i] != CHAR_VALUE) {
+            if (charType(i) != CHAR_VALUE) {
                 currentTokenType = KEYWORD;
-                currentToken = ".";
                 parseIndex = i;
                 return;
             }
@@ -1102,14 +1676,9 @@ public class XPathToSQL2Converter {
             return;
         case CHAR_STRING:
             currentTokenQuoted = true;
-            if (chars[i - 1] == '\'') {
-                readString(i, '\'');
-            } else {
-                readString(i, '\"');
-            }
+            readString(i, c);
             return;
         case CHAR_END:
-            currentToken = "";
             currentTokenType = END;
             parseIndex = i;
             return;
@@ -1118,49 +1687,43 @@ public class XPathToSQL2Converter {
         }
     }
 
-    private void readString(int i, char end) throws ParseException {
-        char[] chars = statementChars;
-        String result = null;
+    private void readString(int i, char end) {
+        String s = statement;
+        boolean escaped = false;
         while (true) {
-            for (int begin = i;; i++) {
-                if (chars[i] == end) {
-                    if (result == null) {
-                        result = statement.substring(begin, i);
-                    } else {
-                        result += statement.substring(begin - 1, i);
-                    }
-                    break;
-                }
-            }
-            if (chars[++i] != end) {
+            // the closing quote exists, this was checked when initializing
+            i = s.indexOf(end, i);
+            if (charAt(++i) != end) {
                 break;
             }
+            // two quotes: an escaped quote
+            escaped = true;
             i++;
         }
-        currentToken = result;
+        currentTokenEscaped = escaped;
         parseIndex = i;
         currentTokenType = VALUE_STRING;
     }
 
     private void readDecimal(int start, int i) throws ParseException {
-        char[] chars = statementChars;
-        int[] types = characterTypes;
         while (true) {
-            int t = types[i];
+            int t = charType(i);
             if (t != CHAR_DECIMAL && t != CHAR_VALUE) {
                 break;
             }
             i++;
         }
-        if (chars[i] == 'E' || chars[i] == 'e') {
+        char c = charAt(i);
+        if (c == 'E' || c == 'e') {
             i++;
-            if (chars[i] == '+' || chars[i] == '-') {
+            c = charAt(i);
+            if (c == '+' || c == '-') {
                 i++;
             }
-            if (types[i] != CHAR_VALUE) {
+            if (charType(i) != CHAR_VALUE) {
                 throw getSyntaxError();
             }
-            while (types[++i] == CHAR_VALUE) {
+            while (charType(++i) == CHAR_VALUE) {
                 // go until the first non-number
             }
         }
@@ -1172,11 +1735,12 @@ public class XPathToSQL2Converter {
             throw new ParseException("Data conversion error converting " + sub + " to BigDecimal: " + e, i);
         }
         currentToken = sub;
+        currentTokenNumber = -1;
         currentTokenType = VALUE_NUMBER;
     }
 
     private ParseException getSyntaxError() {
-        if (expected == null || expected.isEmpty()) {
+        if (expected.isEmpty()) {
             return getSyntaxError(null);
         } else {
             StringBuilder buff = new StringBuilder();
@@ -1199,48 +1763,99 @@ public class XPathToSQL2Converter {
         return new ParseException("Query:\n" + query, index);
     }
 
-    private Statement convertToUnion(String query, Statement statement,
-            int startParseIndex) throws ParseException {
-        int start = query.indexOf("(", startParseIndex);
-        String begin = query.substring(0, start);
-        XPathToSQL2Converter converter = new XPathToSQL2Converter();
-        String partList = query.substring(start);
-        converter.initialize(partList);
-        converter.read();
-        int lastParseIndex = converter.parseIndex;
-        int lastOrIndex = lastParseIndex;
-        converter.read("(");
+    /**
+     * Convert a query with alternatives, for example "/a/(b|c)/d", to a
+     * union. The parts before and after the alternatives are not copied:
+     * each alternative is parsed by reading the ranges of the query in a
+     * different order. Nested alternatives are converted in the same way.
+     *
+     * @param statement the statement parsed so far
+     * @param start the position of the open bracket
+     * @param segment the index of the range that contains the open bracket
+     * @return the union statement
+     */
+    private Statement convertToUnion(Statement statement, int start,
+            int segment) throws ParseException {
+        // nested alternatives are included in the time of the outer ones
+        long time = unionDepth == 0 ? System.nanoTime() : 0;
+        unionDepth++;
+        try {
+            return expandUnion(statement, start, segment);
+        } finally {
+            if (--unionDepth == 0) {
+                unionTime += System.nanoTime() - time;
+            }
+        }
+    }
+
+    private Statement expandUnion(Statement statement, int start,
+            int segment) throws ParseException {
+        int errorIndex = parseIndex;
+        int[] oldSegments = segments;
+        int segmentStart = oldSegments[segment];
+        segmentIndex = segment;
+        segmentEnd = oldSegments[segment + 1];
+        parseIndex = start;
+        read();
+        read("(");
         int level = 0;
-        ArrayList<String> parts = new ArrayList<String>();
-        int parseIndex;
+        // the ranges (start, end) of the alternatives
+        int[] parts = new int[8];
+        int partCount = 0;
+        int lastOrIndex = currentTokenStart;
+        int partEnd;
         while (true) {
-            parseIndex = converter.parseIndex;
-            if (converter.readIf("(")) {
+            partEnd = currentTokenStart;
+            if (readIf("(")) {
                 level++;
-            } else if (converter.readIf(")")) {
+            } else if (readIf(")")) {
                 if (level-- <= 0) {
                     break;
                 }
-            } else if (converter.readIf("|") && level == 0) {
-                String or = partList.substring(lastOrIndex, parseIndex - 1);
-                parts.add(or);
-                lastOrIndex = parseIndex;
-            } else if (converter.currentTokenType == END) {
+            } else if (readIf("|") && level == 0) {
+                if (partCount == parts.length) {
+                    parts = Arrays.copyOf(parts, partCount * 2);
+                }
+                parts[partCount++] = lastOrIndex;
+                parts[partCount++] = partEnd;
+                lastOrIndex = currentTokenStart;
+            } else if (currentTokenType == END) {
+                parseIndex = errorIndex;
                 throw getSyntaxError("empty query or missing ')'");
             } else {
-                converter.read();
+                read();
             }
         }
-        String or = partList.substring(lastOrIndex, parseIndex - 1);
-        parts.add(or);
-        String end = partList.substring(parseIndex);
+        if (partCount == parts.length) {
+            parts = Arrays.copyOf(parts, partCount * 2);
+        }
+        parts[partCount++] = lastOrIndex;
+        parts[partCount++] = partEnd;
+        // the token after the closing bracket was already read
+        int end = partEnd + 1;
         Statement result = null;
         ArrayList<Order> orderList = null;
         QueryOptions queryOptions = null;
-        for(String p : parts) {
-            String q = begin + p + end;
-            converter = new XPathToSQL2Converter();
-            Statement stat = converter.convertToStatement(q);
+        for (int i = 0; i < partCount; i += 2) {
+            // the ranges before, the part before the alternatives,
+            // the alternative, the part after the alternatives,
+            // and the ranges after
+            int[] s = new int[oldSegments.length + 4];
+            System.arraycopy(oldSegments, 0, s, 0, segment);
+            s[segment] = segmentStart;
+            s[segment + 1] = start;
+            s[segment + 2] = parts[i];
+            s[segment + 3] = parts[i + 1];
+            s[segment + 4] = end;
+            s[segment + 5] = oldSegments[segment + 1];
+            System.arraycopy(oldSegments, segment + 2, s, segment + 6,
+                    oldSegments.length - segment - 2);
+            setSegments(s);
+            currentSelector = new Selector();
+            selectors = new ArrayList<Selector>();
+            Statement stat = new Statement();
+            stat.setOriginalQuery(statement.xpathQuery);
+            stat = parseStatement(stat);
             orderList = stat.orderList;
             queryOptions = stat.queryOptions;
             // reset fields that are used in the union,
@@ -1262,5 +1877,41 @@ public class XPathToSQL2Converter {
         return result;
     }
 
-}
+    /**
+     * Converts a range of the queries of a batch, splitting the range until
+     * it is small enough.
+     */
+    private static class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
 
+        private final String[] queries;
+        private final ConversionResult[] results;
+        private final int start, end, batchSize;
+
+        BatchTask(String[] queries, ConversionResult[] results,
+                int start, int end, int batchSize) {
+            this.queries = queries;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > batchSize) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new BatchTask(queries, results, start, mid, batchSize),
+                        new BatchTask(queries, results, mid, end, batchSize));
+                return;
+            }
+            XPathToSQL2Converter converter = CONVERTER.get();
+            for (int i = start; i < end; i++) {
+                results[i] = converter.convertOrError(queries[i]);
+            }
+        }
+
+    }
+
+}